@@ -0,0 +1,213 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.util.IntHashTable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The batch counterpart of {@link Aggregate}, with the results of
+ * {@link IntegerAggregator} and {@link StringAggregator}: int sums wrap and
+ * averages are rounded towards zero, and a string column can only be counted.
+ * <p>
+ * Each batch of the child is first mapped to group numbers, looking int
+ * group values up in an {@link IntHashTable}, and the aggregate
+ * column is then folded into per-group arrays in one loop. Groups are
+ * returned in the order they first appear. An empty input has no groups,
+ * so it gives no rows even without grouping.
+ */
+public class BatchAggregate implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op aop;
+    private final TupleDesc td;
+    private final int capacity;
+
+    // per group: the group value and the running aggregates
+    private transient int[] groupInts;
+    private transient Field[] groupFields;
+    private transient int[] counts, sums, mins, maxs;
+    private transient int numGroups;
+    private transient IntHashTable intGroups;
+    private transient Map<Field, Integer> fieldGroups;
+
+    private transient int[] rowGroups;
+    private transient TupleBatch out;
+    private transient int emitted;
+
+    /**
+     * @param child  the input
+     * @param afield the column to aggregate
+     * @param gfield the column to group by, or {@link Aggregator#NO_GROUPING}
+     * @param aop    MIN, MAX, SUM, AVG or COUNT; only COUNT for a column
+     *               that is not INT_TYPE
+     */
+    public BatchAggregate(BatchIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield, aop, TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of rows in an output batch
+     */
+    public BatchAggregate(BatchIterator child, int afield, int gfield, Aggregator.Op aop, int capacity) {
+        TupleDesc childTd = child.getTupleDesc();
+        if (aop.ordinal() > Aggregator.Op.COUNT.ordinal()
+                || (aop != Aggregator.Op.COUNT && childTd.getFieldType(afield) != Type.INT_TYPE))
+            throw new IllegalArgumentException("unsupported aggregate " + aop);
+        this.child = child;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        this.capacity = capacity;
+        if (gfield == Aggregator.NO_GROUPING) {
+            this.td = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{childTd.getFieldName(afield)});
+        } else {
+            this.td = new TupleDesc(new Type[]{childTd.getFieldType(gfield), Type.INT_TYPE},
+                    new String[]{childTd.getFieldName(gfield), childTd.getFieldName(afield)});
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        aggregate();
+    }
+
+    private void aggregate() throws DbException, TransactionAbortedException {
+        int groups = 16;
+        groupInts = new int[groups];
+        groupFields = new Field[groups];
+        counts = new int[groups];
+        sums = new int[groups];
+        mins = new int[groups];
+        maxs = new int[groups];
+        numGroups = 0;
+        intGroups = new IntHashTable();
+        fieldGroups = new HashMap<>();
+        rowGroups = new int[TupleBatch.DEFAULT_CAPACITY];
+
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            int n = batch.numSelected();
+            if (rowGroups.length < n) rowGroups = new int[batch.capacity()];
+            mapGroups(batch, n);
+            int[] values = batch.intColumn(afield);
+            for (int i = 0; i < n; i++) counts[rowGroups[i]]++;
+            if (values == null || aop == Aggregator.Op.COUNT) continue;
+            for (int i = 0; i < n; i++) {
+                int g = rowGroups[i];
+                int v = values[batch.selected(i)];
+                sums[g] += v;
+                if (v < mins[g]) mins[g] = v;
+                if (v > maxs[g]) maxs[g] = v;
+            }
+        }
+        emitted = 0;
+        out = new TupleBatch(td, capacity);
+    }
+
+    /** Set rowGroups[i] to the group of the i-th live row, adding new groups. */
+    private void mapGroups(TupleBatch batch, int n) {
+        if (gfield == Aggregator.NO_GROUPING) {
+            if (numGroups == 0) addGroup(0, null);
+            Arrays.fill(rowGroups, 0, n, 0);
+            return;
+        }
+        int[] keys = batch.intColumn(gfield);
+        if (keys != null) {
+            for (int i = 0; i < n; i++) rowGroups[i] = intGroup(keys[batch.selected(i)]);
+        } else {
+            Field[] fields = batch.fieldColumn(gfield);
+            for (int i = 0; i < n; i++) {
+                Field key = fields[batch.selected(i)];
+                Integer g = fieldGroups.get(key);
+                if (g == null) {
+                    g = numGroups;
+                    fieldGroups.put(key, g);
+                    addGroup(0, key);
+                }
+                rowGroups[i] = g;
+            }
+        }
+    }
+
+    /** The group of an int group value. */
+    private int intGroup(int key) {
+        int g = intGroups.get(key);
+        if (g == IntHashTable.NONE) {
+            g = numGroups;
+            intGroups.put(key, g);
+            addGroup(key, null);
+        }
+        return g;
+    }
+
+    private void addGroup(int intKey, Field fieldKey) {
+        if (numGroups == counts.length) {
+            int groups = numGroups * 2;
+            groupInts = Arrays.copyOf(groupInts, groups);
+            groupFields = Arrays.copyOf(groupFields, groups);
+            counts = Arrays.copyOf(counts, groups);
+            sums = Arrays.copyOf(sums, groups);
+            mins = Arrays.copyOf(mins, groups);
+            maxs = Arrays.copyOf(maxs, groups);
+        }
+        groupInts[numGroups] = intKey;
+        groupFields[numGroups] = fieldKey;
+        mins[numGroups] = Integer.MAX_VALUE;
+        maxs[numGroups] = Integer.MIN_VALUE;
+        numGroups++;
+    }
+
+    private int result(int g) {
+        switch (aop) {
+            case COUNT: return counts[g];
+            case SUM: return sums[g];
+            case AVG: return sums[g] / counts[g];
+            case MIN: return mins[g];
+            case MAX: return maxs[g];
+        }
+        throw new IllegalStateException();
+    }
+
+    public TupleBatch nextBatch() {
+        if (emitted >= numGroups) return null;
+        int n = Math.min(capacity, numGroups - emitted);
+        int[] results = out.intColumn(td.numFields() - 1);
+        for (int i = 0; i < n; i++) results[i] = result(emitted + i);
+        if (gfield != Aggregator.NO_GROUPING) {
+            if (out.intColumn(0) != null) System.arraycopy(groupInts, emitted, out.intColumn(0), 0, n);
+            else System.arraycopy(groupFields, emitted, out.fieldColumn(0), 0, n);
+        }
+        out.setSize(n);
+        emitted += n;
+        return out;
+    }
+
+    public void rewind() {
+        emitted = 0;
+    }
+
+    public void close() {
+        child.close();
+        groupInts = null;
+        groupFields = null;
+        counts = sums = mins = maxs = null;
+        intGroups = null;
+        fieldGroups = null;
+        out = null;
+    }
+}
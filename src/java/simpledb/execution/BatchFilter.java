@@ -0,0 +1,125 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * The batch counterpart of {@link Filter}. Rows that fail the predicate are
+ * dropped from the selection vector of the child's batch; an int column
+ * compared to an int constant is filtered in one loop per operator, without
+ * creating Fields. Over a {@link BatchScan} the predicate is pushed down
+ * into the scan instead, as {@link Filter} does with SeqScan.
+ */
+public class BatchFilter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Predicate predicate;
+    private final BatchIterator child;
+    // the child is a scan that already applies the predicate
+    private transient boolean pushedDown;
+
+    public BatchFilter(Predicate p, BatchIterator child) {
+        this.predicate = p;
+        this.child = child;
+    }
+
+    public Predicate getPredicate() {
+        return predicate;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        pushedDown = child instanceof BatchScan && ((BatchScan) child).pushDownPredicate(predicate);
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            if (pushedDown) return batch;
+            filter(batch);
+            if (batch.numSelected() > 0) return batch;
+        }
+        return null;
+    }
+
+    private void filter(TupleBatch batch) {
+        int n = batch.numSelected();
+        int[] sel = batch.selection();
+        int[] out = batch.selectionBuffer();
+        int kept = 0;
+        int col = predicate.getField();
+        Field operand = predicate.getOperand();
+        int[] ints = batch.intColumn(col);
+        if (ints != null && operand instanceof IntField) {
+            int v = ((IntField) operand).getValue();
+            // one loop per operator keeps the comparison out of the loop
+            switch (predicate.getOp()) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) {
+                        int row = sel == null ? i : sel[i];
+                        out[kept] = row;
+                        kept += ints[row] == v ? 1 : 0;
+                    }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) {
+                        int row = sel == null ? i : sel[i];
+                        out[kept] = row;
+                        kept += ints[row] != v ? 1 : 0;
+                    }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int row = sel == null ? i : sel[i];
+                        out[kept] = row;
+                        kept += ints[row] > v ? 1 : 0;
+                    }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int row = sel == null ? i : sel[i];
+                        out[kept] = row;
+                        kept += ints[row] >= v ? 1 : 0;
+                    }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int row = sel == null ? i : sel[i];
+                        out[kept] = row;
+                        kept += ints[row] < v ? 1 : 0;
+                    }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int row = sel == null ? i : sel[i];
+                        out[kept] = row;
+                        kept += ints[row] <= v ? 1 : 0;
+                    }
+                    break;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int row = sel == null ? i : sel[i];
+                if (batch.getField(col, row).compare(predicate.getOp(), operand)) out[kept++] = row;
+            }
+        }
+        batch.select(out, kept);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,231 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+
+/**
+ * The batch counterpart of {@link HashEquiJoin}. The rows of the left child
+ * are kept column by column in arrays, with hash chains threaded through an
+ * int array instead of lists of tuples; each batch of the right child is
+ * then probed row by row, and the matching pairs are copied into the output
+ * a column at a time. Output rows are the left row followed by the right
+ * one.
+ * <p>
+ * Unlike HashEquiJoin, this join does not spill: the whole left input is
+ * held in memory.
+ */
+public class BatchHashJoin implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private final BatchIterator child1, child2;
+    private final TupleDesc td;
+    private final int capacity;
+    private final boolean intKeys;
+
+    // the rows of child1, column by column
+    private transient int[][] buildInts;
+    private transient Field[][] buildFields;
+    private transient int buildSize;
+    // head[h] is the first build row with hash h and next[row] the row after
+    // it with the same hash, or -1
+    private transient int[] head;
+    private transient int[] next;
+    private transient int shift;
+
+    private transient TupleBatch out;
+    private transient TupleBatch probe;
+    // the live row of probe being joined, and the next build row to check
+    private transient int probePos;
+    private transient int chain;
+    private transient int[] leftRows, rightRows;
+
+    /**
+     * @param p      the predicate to join on, which must be an equality
+     * @param child1 the left input, which is built into the hash table
+     * @param child2 the right input, which probes it
+     */
+    public BatchHashJoin(JoinPredicate p, BatchIterator child1, BatchIterator child2) {
+        this(p, child1, child2, TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of rows in an output batch
+     */
+    public BatchHashJoin(JoinPredicate p, BatchIterator child1, BatchIterator child2, int capacity) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.capacity = capacity;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.intKeys = child1.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(p.getField2()) == Type.INT_TYPE;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child1.open();
+        child2.open();
+        build();
+        out = new TupleBatch(td, capacity);
+        leftRows = new int[capacity];
+        rightRows = new int[capacity];
+        probe = null;
+        chain = -1;
+    }
+
+    private void build() throws DbException, TransactionAbortedException {
+        TupleDesc td1 = child1.getTupleDesc();
+        int n1 = td1.numFields();
+        int rows = TupleBatch.DEFAULT_CAPACITY;
+        buildInts = new int[n1][];
+        buildFields = new Field[n1][];
+        for (int j = 0; j < n1; j++) {
+            if (td1.getFieldType(j) == Type.INT_TYPE) buildInts[j] = new int[rows];
+            else buildFields[j] = new Field[rows];
+        }
+        buildSize = 0;
+        TupleBatch batch;
+        while ((batch = child1.nextBatch()) != null) {
+            int n = batch.numSelected();
+            if (buildSize + n > rows) {
+                rows = Math.max(rows * 2, buildSize + n);
+                for (int j = 0; j < n1; j++) {
+                    if (buildInts[j] != null) buildInts[j] = Arrays.copyOf(buildInts[j], rows);
+                    else buildFields[j] = Arrays.copyOf(buildFields[j], rows);
+                }
+            }
+            for (int j = 0; j < n1; j++) {
+                if (buildInts[j] != null) {
+                    int[] src = batch.intColumn(j), dst = buildInts[j];
+                    for (int i = 0; i < n; i++) dst[buildSize + i] = src[batch.selected(i)];
+                } else {
+                    Field[] src = batch.fieldColumn(j), dst = buildFields[j];
+                    for (int i = 0; i < n; i++) dst[buildSize + i] = src[batch.selected(i)];
+                }
+            }
+            buildSize += n;
+        }
+
+        // at least two buckets per row
+        int bits = 33 - Integer.numberOfLeadingZeros(Math.max(buildSize, 1));
+        shift = 32 - bits;
+        head = new int[1 << bits];
+        Arrays.fill(head, -1);
+        next = new int[buildSize];
+        int key = pred.getField1();
+        // insert backwards, so that chains are in input order
+        for (int row = buildSize - 1; row >= 0; row--) {
+            int h = hash(intKeys ? buildInts[key][row] : buildKey(row).hashCode());
+            next[row] = head[h];
+            head[h] = row;
+        }
+    }
+
+    private int hash(int hashCode) {
+        return (hashCode * 0x9E3779B9) >>> shift;
+    }
+
+    private Field buildKey(int row) {
+        int key = pred.getField1();
+        return buildInts[key] != null ? new IntField(buildInts[key][row]) : buildFields[key][row];
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (buildSize == 0) return null;
+        int key = pred.getField2();
+        int count = 0;
+        while (count < capacity) {
+            if (chain < 0) {
+                if (probe == null || ++probePos >= probe.numSelected()) {
+                    // the pairs found so far point into the current probe batch
+                    if (count > 0) break;
+                    probe = child2.nextBatch();
+                    if (probe == null) return null;
+                    probePos = 0;
+                }
+                int row = probe.selected(probePos);
+                chain = head[hash(intKeys ? probe.intColumn(key)[row] : probe.getField(key, row).hashCode())];
+            }
+            int row = probe.selected(probePos);
+            if (intKeys) {
+                int[] buildKeys = buildInts[pred.getField1()];
+                int v = probe.intColumn(key)[row];
+                for (; chain >= 0 && count < capacity; chain = next[chain]) {
+                    if (buildKeys[chain] == v) {
+                        leftRows[count] = chain;
+                        rightRows[count++] = row;
+                    }
+                }
+            } else {
+                Field v = probe.getField(key, row);
+                for (; chain >= 0 && count < capacity; chain = next[chain]) {
+                    if (buildKey(chain).equals(v)) {
+                        leftRows[count] = chain;
+                        rightRows[count++] = row;
+                    }
+                }
+            }
+        }
+        gather(count);
+        return out;
+    }
+
+    /** Copy the first count pairs of rows into out. */
+    private void gather(int count) {
+        int n1 = buildInts.length;
+        for (int j = 0; j < n1; j++) {
+            if (buildInts[j] != null) {
+                int[] src = buildInts[j], dst = out.intColumn(j);
+                for (int i = 0; i < count; i++) dst[i] = src[leftRows[i]];
+            } else {
+                Field[] src = buildFields[j], dst = out.fieldColumn(j);
+                for (int i = 0; i < count; i++) dst[i] = src[leftRows[i]];
+            }
+        }
+        for (int j = n1; j < td.numFields(); j++) {
+            if (out.intColumn(j) != null) {
+                int[] src = probe.intColumn(j - n1), dst = out.intColumn(j);
+                for (int i = 0; i < count; i++) dst[i] = src[rightRows[i]];
+            } else {
+                Field[] src = probe.fieldColumn(j - n1), dst = out.fieldColumn(j);
+                for (int i = 0; i < count; i++) dst[i] = src[rightRows[i]];
+            }
+        }
+        out.setSize(count);
+    }
+
+    /** Probes again from the start of the right input; the table is kept. */
+    public void rewind() throws DbException, TransactionAbortedException {
+        child2.rewind();
+        probe = null;
+        chain = -1;
+    }
+
+    public void close() {
+        child2.close();
+        child1.close();
+        buildInts = null;
+        buildFields = null;
+        head = null;
+        next = null;
+        out = null;
+        probe = null;
+    }
+}
@@ -0,0 +1,38 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Serializable;
+
+/**
+ * The interface of operators that run a batch of rows at a time instead of
+ * a tuple at a time, an opt-in alternative to {@link OpIterator}. Values are
+ * passed column by column in {@link TupleBatch}es, so that an operator works
+ * through each column in a tight loop over plain arrays.
+ * <p>
+ * {@link Batched} runs any OpIterator in a batch pipeline and
+ * {@link Unbatched} runs a batch pipeline as an OpIterator. As with
+ * OpIterator, open() opens the children and close() closes them.
+ */
+public interface BatchIterator extends Serializable {
+
+    void open() throws DbException, TransactionAbortedException;
+
+    /**
+     * Returns the next batch with at least one live row. The batch is only
+     * valid until the next call.
+     *
+     * @return the next batch, or null if there are no more rows
+     */
+    TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+    /** Resets the iterator to the start. */
+    void rewind() throws DbException, TransactionAbortedException;
+
+    /** The TupleDesc of the rows in the batches returned. */
+    TupleDesc getTupleDesc();
+
+    void close();
+}
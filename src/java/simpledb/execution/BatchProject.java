@@ -0,0 +1,60 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.List;
+
+/**
+ * The batch counterpart of {@link Project}. A projected batch shares the
+ * column arrays of the child's batch, so no values are copied.
+ */
+public class BatchProject implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BatchIterator child;
+    private final int[] columns;
+    private final TupleDesc td;
+
+    /**
+     * @param fieldList the ids of the fields of the child's tupleDesc to
+     *                  project out
+     * @param types     the types of the fields in the final projection
+     * @param child     the child operator
+     */
+    public BatchProject(List<Integer> fieldList, Type[] types, BatchIterator child) {
+        this.child = child;
+        this.columns = new int[fieldList.size()];
+        String[] names = new String[columns.length];
+        TupleDesc childTd = child.getTupleDesc();
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = fieldList.get(i);
+            names[i] = childTd.getFieldName(columns[i]);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = child.nextBatch();
+        return batch == null ? null : batch.project(columns, td);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferRing;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.ReadAhead;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * The batch counterpart of {@link SeqScan}. Pages of a {@link HeapFile} are
+ * decoded straight into the columns of a batch (see
+ * {@link HeapPage#readInto}), through a scan ring and with read-ahead like
+ * its tuple iterator, and a pushed-down predicate is checked before a row is
+ * decoded. Other files are read a tuple at a time.
+ */
+public class BatchScan implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final int tableId;
+    private final TupleDesc td;
+    private final int capacity;
+    private Predicate predicate;
+
+    private transient TupleBatch batch;
+    private transient int numPages;
+    private transient int pageNo;
+    private transient HeapPage page;
+    private transient int slot;
+    private transient BufferRing ring;
+    private transient ReadAhead readAhead;
+    // for files other than heap files
+    private transient DbFileIterator tuples;
+
+    /**
+     * @param tableAlias the alias field names are prefixed with, as in SeqScan
+     */
+    public BatchScan(TransactionId tid, int tableId, String tableAlias) {
+        this(tid, tableId, tableAlias, TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of rows in a batch
+     */
+    public BatchScan(TransactionId tid, int tableId, String tableAlias, int capacity) {
+        this.tid = tid;
+        this.tableId = tableId;
+        this.td = new SeqScan(tid, tableId, tableAlias).getTupleDesc();
+        this.capacity = capacity;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Only return the rows that satisfy a predicate, which rows of a heap
+     * file are checked against before they are decoded. Must be called
+     * before open().
+     *
+     * @return true if the scan now filters, false if the table's file cannot
+     *         evaluate predicates and the caller has to
+     */
+    public boolean pushDownPredicate(Predicate predicate) {
+        if (!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile)) return false;
+        this.predicate = predicate;
+        return true;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        batch = new TupleBatch(td, capacity);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof HeapFile) {
+            numPages = ((HeapFile) file).numPages();
+            ring = Database.getBufferPool().newScanRing(numPages);
+            readAhead = Database.getBufferPool().newReadAhead(tableId, numPages);
+            pageNo = -1;
+            page = null;
+        } else {
+            tuples = file.iterator(tid);
+            tuples.open();
+        }
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        if (tuples != null) {
+            while (!batch.isFull() && tuples.hasNext()) batch.add(tuples.next());
+            return batch.size() > 0 ? batch : null;
+        }
+        while (!batch.isFull()) {
+            if (page == null) {
+                if (++pageNo >= numPages) break;
+                page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId, pageNo),
+                        Permissions.READ_ONLY, ring);
+                if (readAhead != null) readAhead.accessed(page);
+                slot = 0;
+            }
+            slot = page.readInto(slot, batch, predicate);
+            if (slot < 0) page = null;
+        }
+        return batch.size() > 0 ? batch : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        if (tuples != null) tuples.close();
+        tuples = null;
+        page = null;
+        ring = null;
+        readAhead = null;
+        batch = null;
+    }
+}
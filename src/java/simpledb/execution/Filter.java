@@ -17,6 +17,8 @@ public class Filter extends Operator {
     private Predicate predicate;
     private OpIterator childOpIterator;
     private TupleDesc tupleDesc;
+    // the child is a scan that already applies the predicate
+    private boolean pushedDown;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -46,6 +48,8 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        pushedDown = childOpIterator instanceof SeqScan
+                && ((SeqScan) childOpIterator).pushDownPredicate(predicate);
         childOpIterator.open();
         super.open();
     }
@@ -77,7 +81,7 @@ public class Filter extends Operator {
         while (this.childOpIterator.hasNext()){
             tuple = this.childOpIterator.next();
             if (tuple != null){
-                if (this.predicate.filter(tuple))return tuple;
+                if (pushedDown || this.predicate.filter(tuple))return tuple;
             }
         }
         return null;
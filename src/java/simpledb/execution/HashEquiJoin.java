@@ -2,13 +2,32 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.util.IntHashTable;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * This is a hybrid hash join. The left child is loaded into a hash table by
+ * join key; when it has more tuples than fit in memory, both children are
+ * split into {@link #PARTITIONS} partitions by a hash of the key and written
+ * to {@link SpillFile}s, except that partition 0 of the left child stays in
+ * memory as long as it fits and the right tuples of that partition are
+ * joined as they are read. Pairs of partitions are then joined the same way,
+ * splitting them again if they still do not fit. Each child is read once,
+ * however large the left one is.
+ * <p>
+ * When both join columns are INT_TYPE, the tuples in memory are kept in an
+ * array and chained by key through an {@link IntHashTable} instead of a
+ * HashMap from boxed Fields to lists.
  */
 public class HashEquiJoin extends Operator {
 
@@ -31,9 +50,22 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * @param maxTuples
+     *            The number of left tuples held in memory, at least 1
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int maxTuples) {
+        if (maxTuples < 1)
+            throw new IllegalArgumentException("maxTuples must be at least 1");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.maxTuples = maxTuples;
+        this.intKeys = child1.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(p.getField2()) == Type.INT_TYPE;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -56,27 +88,263 @@ public class HashEquiJoin extends Operator {
     }
     
     final Map<Object, List<Tuple>> map = new HashMap<>();
+    /** The default number of left tuples held in memory. */
     public final static int MAP_SIZE = 20000;
+    /** The number of partitions an input that does not fit is split into. */
+    public final static int PARTITIONS = 16;
+    // partitions are split again at most this many times; past that, a
+    // partition whose left side does not fit, because too many tuples have
+    // the same key, is joined a chunk at a time
+    private final static int MAX_DEPTH = 4;
+
+    private final int maxTuples;
+    private final boolean intKeys;
+    // with int keys, the left tuples in memory instead of map: intMap has
+    // the last of rows with each key and next[row] the row before it with
+    // the same key, or -1
+    transient private IntHashTable intMap;
+    transient private Tuple[] rows;
+    transient private int[] next;
+    transient private int numRows;
+    // the next row that matches t2, or -1
+    transient private int match = -1;
+
+    // the inputs of the current pass and how many times they were split
+    transient private DbFileIterator left, right;
+    transient private int depth;
+    // the partitions the current pass reads, null when it reads the children
+    transient private Pass pass;
+    // the partitions the current pass writes, null if its left side fits
+    transient private SpillFile[] leftParts, rightParts;
+    // partition 0 of the left side is in the map rather than in leftParts[0]
+    transient private boolean inMemory;
+    // the map holds a chunk of a left side with more tuples than fit
+    transient private boolean chunked;
+    transient private Deque<Pass> pending = new ArrayDeque<>();
+
+    /** A pair of partitions left to join. */
+    private static class Pass {
+        final SpillFile left, right;
+        final int depth;
+
+        Pass(SpillFile left, SpillFile right, int depth) {
+            this.left = left;
+            this.right = right;
+            this.depth = depth;
+        }
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
+        void delete() {
+            left.delete();
+            right.delete();
+        }
+    }
+
+    /** A child read as the input of a pass; the join opens and closes its children. */
+    private static class ChildInput implements DbFileIterator {
+        private final OpIterator child;
+
+        ChildInput(OpIterator child) {
+            this.child = child;
+        }
+
+        public void open() {
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return child.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            return child.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        public void close() {
+        }
+    }
+
+    /** Add a left tuple to the ones in memory. */
+    private void addToMap(Tuple t) {
+        if (!intKeys) {
+            map.computeIfAbsent(t.getField(pred.getField1()), k -> new ArrayList<>()).add(t);
+            return;
+        }
+        if (intMap == null) {
+            int capacity = Math.min(maxTuples + 1, 1024);
+            intMap = new IntHashTable(capacity);
+            rows = new Tuple[capacity];
+            next = new int[capacity];
+        }
+        if (numRows == rows.length) {
+            rows = Arrays.copyOf(rows, numRows * 2);
+            next = Arrays.copyOf(next, numRows * 2);
+        }
+        rows[numRows] = t;
+        next[numRows] = intMap.put(((IntField) t.getField(pred.getField1())).getValue(), numRows);
+        numRows++;
+    }
+
+    /** Remove all left tuples from memory and return them. */
+    private List<Tuple> clearMap() {
+        List<Tuple> tuples = new ArrayList<>();
+        if (intKeys) {
+            if (intMap != null) intMap.clear();
+            for (int i = 0; i < numRows; i++) {
+                tuples.add(rows[i]);
+                rows[i] = null;
+            }
+            numRows = 0;
+        } else {
+            for (List<Tuple> l : map.values()) tuples.addAll(l);
+            map.clear();
+        }
+        return tuples;
+    }
+
+    /**
+     * Fill the map with the next left tuples, up to maxTuples of them.
+     *
+     * @return true if the left side has more tuples
+     */
+    private boolean fillMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+        clearMap();
+        while (cnt < maxTuples && left.hasNext()) {
+            t1 = left.next();
+            addToMap(t1);
+            cnt++;
+        }
+        return left.hasNext();
+    }
+
+    /** Start joining a left and a right input, splitting them if needed. */
+    private void startPass(DbFileIterator left, DbFileIterator right, int depth)
+            throws DbException, TransactionAbortedException {
+        this.left = left;
+        this.right = right;
+        this.depth = depth;
+        leftParts = rightParts = null;
+        chunked = false;
+        listIt = null;
+        match = -1;
+        left.open();
+        if (fillMap()) {
+            if (depth < MAX_DEPTH) partitionLeft();
+            else chunked = true;
+        }
+        right.open();
+    }
+
+    /**
+     * Split the left side into partitions, keeping partition 0 in the map as
+     * long as it fits. The right side is split as it is probed.
+     */
+    private void partitionLeft() throws DbException, TransactionAbortedException {
+        leftParts = new SpillFile[PARTITIONS];
+        rightParts = new SpillFile[PARTITIONS];
+        inMemory = true;
+        int inMap = 0;
+        for (Tuple t : clearMap()) {
+            int p = partition(t.getField(pred.getField1()));
+            if (p == 0) {
+                addToMap(t);
+                inMap++;
+            } else {
+                spill(leftParts, p, t, child1.getTupleDesc());
+            }
+        }
+        while (left.hasNext()) {
+            t1 = left.next();
+            int p = partition(t1.getField(pred.getField1()));
+            if (p != 0 || !inMemory) {
+                spill(leftParts, p, t1, child1.getTupleDesc());
+                continue;
+            }
+            addToMap(t1);
+            if (++inMap > maxTuples) {
+                for (Tuple t : clearMap()) spill(leftParts, 0, t, child1.getTupleDesc());
+                inMemory = false;
+            }
+        }
+    }
+
+    /** The partition of a join key, by a different hash at each depth. */
+    private int partition(Object key) {
+        int h = key.hashCode() + depth * 0x9E3779B9;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & (PARTITIONS - 1);
+    }
+
+    private static void spill(SpillFile[] parts, int p, Tuple t, TupleDesc td) throws DbException {
+        try {
+            if (parts[p] == null) parts[p] = new SpillFile(td);
+            parts[p].add(t);
+        } catch (IOException e) {
+            throw new DbException("could not write partition: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Called when the right side of the current pass is done: probe it again
+     * with the next chunk of the left side, or go on to the next pair of
+     * partitions.
+     *
+     * @return false if there is nothing left to join
+     */
+    private boolean nextPass() throws DbException, TransactionAbortedException {
+        if (chunked) {
+            chunked = fillMap();
+            right.rewind();
+            return true;
+        }
+        left.close();
+        right.close();
+        if (pass != null) pass.delete();
+        pass = null;
+        if (leftParts != null) {
+            for (int p = 0; p < PARTITIONS; p++) {
+                if (leftParts[p] != null && rightParts[p] != null)
+                    pending.push(new Pass(leftParts[p], rightParts[p], depth + 1));
+                else if (leftParts[p] != null) leftParts[p].delete();
+            }
+            leftParts = rightParts = null;
         }
-        return cnt > 0;
+        clearMap();
+        pass = pending.poll();
+        if (pass == null) return false;
+        startPass(pass.left.iterator(), pass.right.iterator(), pass.depth);
+        return true;
+    }
 
+    /** Stop reading the current pass and delete all partitions, written or being written. */
+    private void deletePartitions() {
+        if (left != null) left.close();
+        if (right != null) right.close();
+        left = right = null;
+        if (pass != null) pass.delete();
+        pass = null;
+        for (Pass p : pending) p.delete();
+        pending.clear();
+        if (leftParts != null) {
+            for (int p = 0; p < PARTITIONS; p++) {
+                if (leftParts[p] != null) leftParts[p].delete();
+                if (rightParts[p] != null) rightParts[p].delete();
+            }
+        }
+        leftParts = rightParts = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        startPass(new ChildInput(child1), new ChildInput(child2), 0);
         super.open();
     }
 
@@ -87,12 +355,16 @@ public class HashEquiJoin extends Operator {
         this.t1=null;
         this.t2=null;
         this.listIt=null;
-        this.map.clear();
+        this.match=-1;
+        clearMap();
+        deletePartitions();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        deletePartitions();
         child1.rewind();
         child2.rewind();
+        startPass(new ChildInput(child1), new ChildInput(child2), 0);
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -116,7 +388,12 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() {
-        t1 = listIt.next();
+        if (match >= 0) {
+            t1 = rows[match];
+            match = next[match];
+        } else {
+            t1 = listIt.next();
+        }
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -132,32 +409,38 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (true) {
+            if (match >= 0 || (listIt != null && listIt.hasNext())) {
+                return processList();
+            }
+            listIt = null;
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            // loop around the right side
+            if (right.hasNext()) {
+                t2 = right.next();
+                Object key = t2.getField(pred.getField2());
+                if (rightParts != null) {
+                    int p = partition(key);
+                    if (p != 0 || !inMemory) {
+                        // a tuple whose left partition is empty has no match
+                        if (leftParts[p] != null) spill(rightParts, p, t2, child2.getTupleDesc());
+                        continue;
+                    }
+                }
+                // if match, create a combined tuple and fill it with the values
+                // from both tuples
+                if (intKeys) {
+                    if (intMap != null) match = intMap.get(((IntField) key).getValue());
+                } else {
+                    List<Tuple> l = map.get(key);
+                    if (l != null) listIt = l.iterator();
+                }
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // the right side is done: go on with the next chunk or partitions
+            if (!nextPass()) return null;
         }
-
-        return null;
     }
 
     @Override
@@ -170,5 +453,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.common.Type;
 import simpledb.storage.*;
+import simpledb.util.IntHashTable;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -10,6 +11,9 @@ import java.util.Map;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups of an INT_TYPE group-by field are numbered in an
+ * {@link IntHashTable} rather than looked up by boxed Field.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -22,6 +26,10 @@ public class IntegerAggregator implements Aggregator {
     private TupleDesc tupleDesc;
 
     private Map<Field,ResInfo> map;
+    // with an int group-by field: group numbers by value, and the groups
+    private IntHashTable intGroups;
+    private List<Field> groupFields;
+    private List<ResInfo> groups;
     /**
      * Aggregate constructor
      * 
@@ -44,6 +52,11 @@ public class IntegerAggregator implements Aggregator {
         this.afield = afield;
         this.what = what;
         map = new HashMap<>();
+        if (gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE) {
+            intGroups = new IntHashTable();
+            groupFields = new ArrayList<>();
+            groups = new ArrayList<>();
+        }
     }
 
     private static class ResInfo{
@@ -85,6 +98,18 @@ public class IntegerAggregator implements Aggregator {
 
         IntField field = (IntField) tup.getField(afield);
         Field group = tup.getField(gbfield);
+        if (intGroups != null) {
+            int value = ((IntField) group).getValue();
+            int g = intGroups.get(value);
+            if (g == IntHashTable.NONE) {
+                g = groups.size();
+                intGroups.put(value, g);
+                groupFields.add(group);
+                groups.add(new ResInfo());
+            }
+            groups.get(g).add(field);
+            return;
+        }
         if (map.get(group)!=null){
             ResInfo resInfo = map.get(group);
             resInfo.add(field);
@@ -114,7 +139,14 @@ public class IntegerAggregator implements Aggregator {
     public OpIterator iterator() {
         // some code goes here
         List<Tuple> tuples = new ArrayList<>();
-        if (this.gbfield != NO_GROUPING){
+        if (intGroups != null) {
+            for (int g = 0; g < groups.size(); g++) {
+                Tuple tuple = new Tuple(this.tupleDesc);
+                tuple.setField(0, groupFields.get(g));
+                tuple.setField(1, new IntField(groups.get(g).getResult(what)));
+                tuples.add(tuple);
+            }
+        } else if (this.gbfield != NO_GROUPING){
             this.map.forEach((key,value)->{
                 Tuple tuple = new Tuple(this.tupleDesc);
                 tuple.setField(0,key);
@@ -2,25 +2,46 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.DbFileIterator;
 import simpledb.storage.Field;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Up to a budget of tuples is sorted in memory. A larger input is cut into
+ * runs of that many tuples, each sorted and written to a {@link SpillFile},
+ * and the runs are then merged with a priority queue on their first tuples.
+ * At most {@link #MERGE_WAYS} runs are merged at once: with more, groups of
+ * runs are first merged into longer runs, so that memory stays bounded
+ * however large the input. Tuples that compare equal keep their input
+ * order.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** The default number of tuples sorted in memory. */
+    public final static int SORT_BUFFER = 100000;
+    /** The most runs merged at once. */
+    public final static int MERGE_WAYS = 64;
+
     private OpIterator child;
     private final TupleDesc td;
     private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
+    private final int[] orderByFields;
     private final String orderByFieldName;
     private Iterator<Tuple> it;
-    private final boolean asc;
+    private final boolean[] asc;
+    private final int maxTuples;
+    private transient TupleComparator comparator;
+    // when the input did not fit: the sorted runs, and the merge of them
+    private transient List<SpillFile> runs;
+    private transient Merge merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,21 +54,60 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: on the first,
+     * then on the second among tuples equal in the first, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        this(orderbyFields, asc, child, SORT_BUFFER);
+    }
+
+    /**
+     * @param maxTuples
+     *            the number of tuples sorted in memory, at least 1; a larger
+     *            input is sorted in runs of this many tuples, written to disk
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child, int maxTuples) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("one sort order is needed per field");
+        if (maxTuples < 1)
+            throw new IllegalArgumentException("maxTuples must be at least 1");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = asc.clone();
+        this.maxTuples = maxTuples;
     }
     
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
+    }
+
+    /** The fields sorted on, most significant first. */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** For each of {@link #getOrderByFields}, true if it is ascending. */
+    public boolean[] getAscending() {
+        return asc.clone();
     }
     
     public String getOrderFieldName()
@@ -61,22 +121,99 @@ public class OrderBy extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        // drop what an earlier open left, if it was not closed
+        release();
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
+        comparator = new TupleComparator(orderByFields, asc);
+        // load all the tuples in a collection, and sort it; past the budget,
+        // write it out as a run and start again
+        while (child.hasNext()) {
+            if (childTups.size() >= maxTuples) {
+                if (runs == null) runs = new ArrayList<>();
+                runs.add(writeRun());
+            }
             childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        }
+        if (runs != null) {
+            runs.add(writeRun());
+            while (runs.size() > MERGE_WAYS)
+                mergeRuns();
+            merge = new Merge(runs);
+        } else {
+            childTups.sort(comparator);
+            it = childTups.iterator();
+        }
         super.open();
     }
 
+    /** Sort childTups into a new run, and empty it. */
+    private SpillFile writeRun() throws DbException {
+        childTups.sort(comparator);
+        try {
+            SpillFile run = new SpillFile(td);
+            for (Tuple t : childTups)
+                run.add(t);
+            childTups.clear();
+            return run;
+        } catch (IOException e) {
+            throw new DbException("could not write sorted run: " + e.getMessage());
+        }
+    }
+
+    /** Merge each group of MERGE_WAYS runs into one. */
+    private void mergeRuns() throws DbException, TransactionAbortedException {
+        List<SpillFile> merged = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += MERGE_WAYS) {
+            List<SpillFile> group = runs.subList(i, Math.min(i + MERGE_WAYS, runs.size()));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+            Merge m = new Merge(group);
+            try {
+                SpillFile run = new SpillFile(td);
+                Tuple t;
+                while ((t = m.next()) != null)
+                    run.add(t);
+                merged.add(run);
+            } catch (IOException e) {
+                throw new DbException("could not write sorted run: " + e.getMessage());
+            } finally {
+                m.close();
+            }
+            for (SpillFile run : group)
+                run.delete();
+        }
+        runs = merged;
+    }
+
     public void close() {
         super.close();
+        child.close();
+        release();
+    }
+
+    /** Forget the sorted tuples and delete the runs. */
+    private void release() {
         it = null;
+        childTups.clear();
+        if (merge != null)
+            merge.close();
+        merge = null;
+        if (runs != null) {
+            for (SpillFile run : runs)
+                run.delete();
+        }
+        runs = null;
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (runs != null) {
+            merge.close();
+            merge = new Merge(runs);
+        } else {
+            it = childTups.iterator();
+        }
     }
 
     /**
@@ -86,8 +223,11 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (merge != null) {
+            return merge.next();
+        } else if (it != null && it.hasNext()) {
             return it.next();
         } else
             return null;
@@ -103,26 +243,80 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
+    /** A k-way merge of sorted runs. */
+    private class Merge {
+        private final DbFileIterator[] its;
+        // the next tuple of each run, and the runs that have one, smallest
+        // first; of equal tuples, the one from the earlier run
+        private final Tuple[] heads;
+        private final PriorityQueue<Integer> queue;
+
+        Merge(List<SpillFile> runs) throws DbException, TransactionAbortedException {
+            its = new DbFileIterator[runs.size()];
+            heads = new Tuple[its.length];
+            queue = new PriorityQueue<>(its.length, (a, b) -> {
+                int c = comparator.compare(heads[a], heads[b]);
+                return c != 0 ? c : a - b;
+            });
+            for (int i = 0; i < its.length; i++) {
+                its[i] = runs.get(i).iterator();
+                its[i].open();
+                advance(i);
+            }
+        }
+
+        private void advance(int i) throws DbException, TransactionAbortedException {
+            if (its[i].hasNext()) {
+                heads[i] = its[i].next();
+                queue.add(i);
+            }
+        }
+
+        /** The next tuple in order, or null if there are no more. */
+        Tuple next() throws DbException, TransactionAbortedException {
+            Integer i = queue.poll();
+            if (i == null)
+                return null;
+            Tuple t = heads[i];
+            advance(i);
+            return t;
+        }
+
+        void close() {
+            for (DbFileIterator i : its) {
+                if (i != null)
+                    i.close();
+            }
+        }
+    }
+
 }
 
 class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
+    final int[] fields;
+    final boolean[] asc;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
+        this(new int[]{field}, new boolean[]{asc});
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
         this.asc = asc;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return asc[i] ? 1 : -1;
+            else
+                return asc[i] ? -1 : 1;
+        }
+        return 0;
     }
     
 }
@@ -5,7 +5,9 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -89,6 +91,20 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Only return the tuples that satisfy a predicate. Must be called before
+     * open().
+     *
+     * @return true if the scan now filters, false if the table's file cannot
+     *         evaluate predicates and the caller has to
+     */
+    public boolean pushDownPredicate(Predicate predicate) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile)) return false;
+        this.dbFileIterator = ((HeapFile) file).iterator(tid, predicate);
+        return true;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         this.dbFileIterator.open();
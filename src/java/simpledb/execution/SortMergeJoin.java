@@ -0,0 +1,215 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A join of two inputs in ascending order of their join fields, for an
+ * equality or one of the range predicates &lt;, &lt;=, &gt; and &gt;=. An
+ * input that is not already in that order (see {@link #isSorted}) is sorted
+ * with an {@link OrderBy} first; a scan of a B+ tree keyed on the join field
+ * is used as it is.
+ * <p>
+ * Both inputs are then read once, in step. For an equality, the right tuples
+ * with the key of the current left tuple are buffered and joined with each
+ * left tuple that has that key. For a range predicate, the right tuples that
+ * match a left tuple only grow or shrink at one end as the left key grows:
+ * with &gt; and &gt;= they are the right tuples read so far, and with &lt;
+ * and &lt;= all but a prefix of the right input, which is then buffered
+ * whole. Output tuples are the left tuple followed by the right one, in
+ * order of the left join field.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc td;
+
+    // the children, sorted if they were not already
+    private transient OpIterator left, right;
+    private transient Tuple t1;
+    // right tuples that may match t1, of which [pos, end) are still to be
+    // joined with it; those before start no longer match any left tuple
+    private transient List<Tuple> buffer;
+    private transient int start, pos, end;
+    // the first right tuple not in buffer, or null at the end of the right input
+    private transient Tuple peek;
+
+    /**
+     * @param p      the predicate to join on: EQUALS, LESS_THAN,
+     *               LESS_THAN_OR_EQ, GREATER_THAN or GREATER_THAN_OR_EQ
+     * @param child1 the left input
+     * @param child2 the right input
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("a sort-merge join cannot join on " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** Whether a sort-merge join can join on a predicate. */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * Whether the tuples of an operator are known to be in ascending order
+     * of a field: an ascending OrderBy on the field, a scan of a B+ tree
+     * keyed on it, a Filter over one of those, or a SortMergeJoin on it.
+     */
+    public static boolean isSorted(OpIterator it, int field) {
+        if (it instanceof Filter) return isSorted(((Filter) it).getChildren()[0], field);
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            JoinPredicate p = j.getJoinPredicate();
+            return field == p.getField1() || (p.getOperator() == Predicate.Op.EQUALS
+                    && field == j.child1.getTupleDesc().numFields() + p.getField2());
+        }
+        String table;
+        if (it instanceof SeqScan) table = ((SeqScan) it).getTableName();
+        else if (it instanceof BTreeScan) table = ((BTreeScan) it).getTableName();
+        else return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(table));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        left = isSorted(child1, pred.getField1()) ? child1 : new OrderBy(pred.getField1(), true, child1);
+        right = isSorted(child2, pred.getField2()) ? child2 : new OrderBy(pred.getField2(), true, child2);
+        left.open();
+        right.open();
+        buffer = new ArrayList<>();
+        restart();
+        super.open();
+    }
+
+    private void restart() throws DbException, TransactionAbortedException {
+        buffer.clear();
+        start = pos = end = 0;
+        peek = nextRight();
+    }
+
+    public void close() {
+        super.close();
+        if (left != null) {
+            left.close();
+            right.close();
+        }
+        left = right = null;
+        buffer = null;
+        t1 = peek = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        left.rewind();
+        right.rewind();
+        restart();
+    }
+
+    private Tuple nextRight() throws DbException, TransactionAbortedException {
+        return right.hasNext() ? right.next() : null;
+    }
+
+    /** Compare the join field of a right tuple with a left key. */
+    private int compare(Tuple t2, Field key) {
+        Field f = t2.getField(pred.getField2());
+        if (f.compare(Predicate.Op.EQUALS, key)) return 0;
+        return f.compare(Predicate.Op.LESS_THAN, key) ? -1 : 1;
+    }
+
+    /** Set [pos, end) of buffer to the right tuples that match t1. */
+    private void match() throws DbException, TransactionAbortedException {
+        Field key = t1.getField(pred.getField1());
+        switch (pred.getOperator()) {
+            case EQUALS:
+                if (!buffer.isEmpty() && compare(buffer.get(0), key) == 0) break;
+                buffer.clear();
+                while (peek != null && compare(peek, key) < 0) peek = nextRight();
+                while (peek != null && compare(peek, key) == 0) {
+                    buffer.add(peek);
+                    peek = nextRight();
+                }
+                break;
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                while (peek != null && pred.filter(t1, peek)) {
+                    buffer.add(peek);
+                    peek = nextRight();
+                }
+                break;
+            default:
+                while (peek != null) {
+                    buffer.add(peek);
+                    peek = nextRight();
+                }
+                while (start < buffer.size() && !pred.filter(t1, buffer.get(start))) start++;
+        }
+        pos = start;
+        end = buffer.size();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (pos >= end) {
+            if (!left.hasNext()) return null;
+            t1 = left.next();
+            match();
+        }
+        Tuple t2 = buffer.get(pos++);
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
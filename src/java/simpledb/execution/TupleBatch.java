@@ -0,0 +1,175 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * A block of rows stored column by column, the unit a {@link BatchIterator}
+ * returns.
+ * <p>
+ * An INT_TYPE column is an int[], any other column an array of Fields. Rows
+ * 0 to size() - 1 hold data, and the selection vector lists the live ones in
+ * order, so that a filter drops rows without moving any. A batch without a
+ * selection vector has all of its rows live.
+ * <p>
+ * Operators read and write the column arrays directly; a batch returned by
+ * {@link BatchIterator#nextBatch()} may be reused by the operator that
+ * returned it once its next batch is asked for.
+ */
+public class TupleBatch {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] ints;
+    private final Field[][] fields;
+    private int size;
+    // the live rows, or null if all rows are live
+    private int[] selection;
+    private int numSelected;
+    private int[] selectionBuffer;
+
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.fields = new Field[td.numFields()][];
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) ints[j] = new int[capacity];
+            else fields[j] = new Field[capacity];
+        }
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int[][] ints, Field[][] fields) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.fields = fields;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** The number of rows the batch can hold. */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** The number of rows that hold data, live or not. */
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size >= capacity;
+    }
+
+    /**
+     * Set the number of rows that hold data, after writing to the column
+     * arrays, and make all of them live.
+     */
+    public void setSize(int size) {
+        this.size = size;
+        this.selection = null;
+        this.numSelected = size;
+    }
+
+    /** Remove all rows. */
+    public void clear() {
+        setSize(0);
+    }
+
+    /** The number of live rows. */
+    public int numSelected() {
+        return numSelected;
+    }
+
+    /** The row of the i-th live row. */
+    public int selected(int i) {
+        return selection == null ? i : selection[i];
+    }
+
+    /**
+     * @return the selection vector, or null if all rows are live
+     */
+    public int[] selection() {
+        return selection;
+    }
+
+    /**
+     * An array of capacity() ints a filter may write the rows it keeps to
+     * before passing it to {@link #select}. It may be the current selection
+     * vector, which is safe to overwrite in order while reading it.
+     */
+    public int[] selectionBuffer() {
+        if (selectionBuffer == null) selectionBuffer = new int[capacity];
+        return selectionBuffer;
+    }
+
+    /** Make only the given rows live, which must be in increasing order. */
+    public void select(int[] rows, int count) {
+        this.selection = rows;
+        this.numSelected = count;
+    }
+
+    /** The values of an INT_TYPE column. */
+    public int[] intColumn(int col) {
+        return ints[col];
+    }
+
+    /** The values of a column of any other type. */
+    public Field[] fieldColumn(int col) {
+        return fields[col];
+    }
+
+    public Field getField(int col, int row) {
+        return ints[col] != null ? new IntField(ints[col][row]) : fields[col][row];
+    }
+
+    /** A tuple with the values of the i-th live row. */
+    public Tuple getTuple(int i) {
+        int row = selected(i);
+        Tuple t = new Tuple(td);
+        for (int j = 0; j < td.numFields(); j++) t.setField(j, getField(j, row));
+        return t;
+    }
+
+    /** Append a tuple as a live row; the batch must have no selection vector. */
+    public void add(Tuple t) {
+        for (int j = 0; j < td.numFields(); j++) {
+            if (ints[j] != null) ints[j][size] = ((IntField) t.getField(j)).getValue();
+            else fields[j][size] = t.getField(j);
+        }
+        setSize(size + 1);
+    }
+
+    /**
+     * A batch of some of the columns of this one, sharing its arrays and its
+     * live rows.
+     *
+     * @param columns the columns of this batch to include, in order
+     * @param td the TupleDesc of the result
+     */
+    public TupleBatch project(int[] columns, TupleDesc td) {
+        int[][] projectedInts = new int[columns.length][];
+        Field[][] projectedFields = new Field[columns.length][];
+        for (int j = 0; j < columns.length; j++) {
+            projectedInts[j] = ints[columns[j]];
+            projectedFields[j] = fields[columns[j]];
+        }
+        TupleBatch view = new TupleBatch(td, capacity, projectedInts, projectedFields);
+        view.size = size;
+        view.selection = selection;
+        view.numSelected = numSelected;
+        return view;
+    }
+}
@@ -4,12 +4,12 @@ import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
-import simpledb.storage.Field;
-import simpledb.storage.IntField;
 import simpledb.storage.Page;
 import simpledb.transaction.TransactionId;
+import simpledb.util.SlotBitmap;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -27,14 +27,19 @@ public class BTreeHeaderPage implements Page {
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
 	final BTreePageId pid;
-	final byte[] header;
 	final int numSlots;
+	// the page as it is on disk; every change is written through to it
+	private final byte[] data;
+	private final ByteBuffer buf;
+	private final int headerOffset = 2 * INDEX_SIZE;
 
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
 	byte[] oldData;
 	private final Byte oldDataLock= (byte) 0;
+	// oldData is data itself until the next change, which copies it first
+	private boolean beforeImageShared;
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -47,29 +52,12 @@ public class BTreeHeaderPage implements Page {
 	public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
 		this.numSlots = getNumSlots();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+		this.buf = ByteBuffer.wrap(this.data);
 
 		// Read the next and prev pointers
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.nextPage = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.prevPage = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
-
-		dis.close();
+		this.nextPage = buf.getInt(0);
+		this.prevPage = buf.getInt(INDEX_SIZE);
 
 		setBeforeImage();
 	}
@@ -78,7 +66,8 @@ public class BTreeHeaderPage implements Page {
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
-        Arrays.fill(header, (byte) 0xFF);
+		beforeWrite();
+		Arrays.fill(data, headerOffset, data.length, (byte) 0xFF);
 	}
 
 	/**
@@ -101,12 +90,12 @@ public class BTreeHeaderPage implements Page {
         -- used by recovery */
 	public BTreeHeaderPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
+			// copied under the lock: once a change has started, data is no
+			// longer the before image
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				return new BTreeHeaderPage(pid,oldData);
 			}
-			return new BTreeHeaderPage(pid,oldDataRef);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -118,7 +107,19 @@ public class BTreeHeaderPage implements Page {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = data;
+			beforeImageShared = true;
+		}
+	}
+
+	/** Must be called before every change to data. */
+	private void beforeWrite() {
+		if (beforeImageShared) {
+			synchronized(oldDataLock)
+			{
+				oldData = data.clone();
+				beforeImageShared = false;
+			}
 		}
 	}
 
@@ -141,41 +142,7 @@ public class BTreeHeaderPage implements Page {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the next and prev pointers
-		try {
-			dos.writeInt(nextPage);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(prevPage);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
+		return data.clone();
 	}
 
 	/**
@@ -232,6 +199,8 @@ public class BTreeHeaderPage implements Page {
 			}
 			prevPage = id.getPageNumber();
 		}
+		beforeWrite();
+		buf.putInt(INDEX_SIZE, prevPage);
 	}
 
 	/**
@@ -252,6 +221,8 @@ public class BTreeHeaderPage implements Page {
 			}
 			nextPage = id.getPageNumber();
 		}
+		beforeWrite();
+		buf.putInt(0, nextPage);
 	}
 
 	/**
@@ -279,7 +250,7 @@ public class BTreeHeaderPage implements Page {
 	public boolean isSlotUsed(int i) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		return (data[headerOffset + headerbyte] & (1 << headerbit)) != 0;
 	}
 
 	/**
@@ -290,10 +261,11 @@ public class BTreeHeaderPage implements Page {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
+		beforeWrite();
 		if(value)
-			header[headerbyte] |= 1 << headerbit;
+			data[headerOffset + headerbyte] |= 1 << headerbit;
 		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+			data[headerOffset + headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
 	/**
@@ -301,15 +273,6 @@ public class BTreeHeaderPage implements Page {
 	 * @return the index of the first empty slot or -1 if none exists
 	 */
 	public int getEmptySlot() {
-		for (int i=0; i<header.length; i++) {
-			if((int) header[i] != 0xFF) {
-				for(int j = 0; j < 8; j++) {
-					if(!isSlotUsed(i*8 + j)) {
-						return i*8 + j;
-					}
-				}
-			}
-		}
-		return -1;
+		return SlotBitmap.nextEmpty(data, headerOffset, numSlots, 0);
 	}
 }
@@ -5,14 +5,13 @@ import java.io.*;
 
 import simpledb.common.Catalog;
 import simpledb.common.Database;
-import simpledb.common.Type;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
-import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.util.SlotBitmap;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -23,10 +22,12 @@ import simpledb.storage.RecordId;
  *
  */
 public class BTreeInternalPage extends BTreePage {
-	private final byte[] header;
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+	private final int headerOffset = INDEX_SIZE + 1;
+	private final int keysOffset;
+	private final int childrenOffset;
 	
 	private int childCategory; // either leaf or internal
 
@@ -71,47 +72,27 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		super(id, key, data);
 		this.numSlots = getMaxEntries() + 1;
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-		// Read the parent pointer
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		// the first key slot is not stored since a node with m keys has m+1 pointers
+		this.keysOffset = headerOffset + getHeaderSize() - td.getFieldType(keyField).getLen();
+		this.childrenOffset = keysOffset + td.getFieldType(keyField).getLen() * numSlots;
 
 		// read the child page category
-		childCategory = dis.readByte();
-
-		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		childCategory = this.data[INDEX_SIZE];
 
+		// read the keys and the child pointers of this page
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
-		}
-
 		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			if (i > 0)
+				keys[i] = td.getFieldType(keyField).parse(buf, keyOffset(i));
+			children[i] = buf.getInt(childOffset(i));
 		}
-		dis.close();
 
 		setBeforeImage();
 	}
@@ -144,12 +125,12 @@ public class BTreeInternalPage extends BTreePage {
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
+			// copied under the lock: once a change has started, data is no
+			// longer the before image
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				return new BTreeInternalPage(pid,oldData,keyField);
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -158,183 +139,22 @@ public class BTreeInternalPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
+	private int keyOffset(int i) {
+		return keysOffset + i * td.getFieldType(keyField).getLen();
 	}
 
-	/**
-	 * Read keys from the source file.
-	 */
-	private Field readNextKey(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next key, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty key");
-				}
-			}
-			return null;
-		}
-
-		// read the key field
-		Field f = null;
-		try {
-			f = td.getFieldType(keyField).parse(dis);
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
-
-		return f;
+	private int childOffset(int i) {
+		return childrenOffset + i * INDEX_SIZE;
 	}
 
-	/**
-	 * Read child pointers from the source file.
-	 */
-	private int readNextChild(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next child pointer, and
-		// return -1.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<INDEX_SIZE; i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty child pointer");
-				}
-			}
-			return -1;
-		}
-
-		// read child pointer
-		int child = -1;
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			child = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
-
-		return child;
+	private void setKey(int i, Field key) {
+		keys[i] = key;
+		writeField(keyOffset(i), key);
 	}
 
-	/**
-	 * Generates a byte array representing the contents of this page.
-	 * Used to serialize this page to disk.
-	 * <p>
-	 * The invariant here is that it should be possible to pass the byte
-	 * array generated by getPageData to the BTreeInternalPage constructor and
-	 * have it produce an identical BTreeInternalPage object.
-	 *
-	 * @see #BTreeInternalPage
-	 * @return A byte array correspond to the bytes of this page.
-	 */
-	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent pointer
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// write out the child page category
-		try {
-			dos.writeByte((byte) childCategory);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-		// create the keys
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for (int i=1; i<keys.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
-		}
-
-		// create the child pointers
-		for (int i=0; i<children.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				dos.writeInt(children[i]);
-
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
+	private void setChild(int i, int child) {
+		children[i] = child;
+		writeInt(childOffset(i), child);
 	}
 
 	/**
@@ -362,7 +182,7 @@ public class BTreeInternalPage extends BTreePage {
 		else {
 			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
 				if(isSlotUsed(i)) {
-					children[i] = children[rid.getTupleNumber()];
+					setChild(i, children[rid.getTupleNumber()]);
 					markSlotUsed(rid.getTupleNumber(), false);
 					break;
 				}	
@@ -429,12 +249,12 @@ public class BTreeInternalPage extends BTreePage {
 					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
 							" HINT: updated key must be greater than or equal to keys on the left");
 				}
-				children[i] = e.getLeftChild().getPageNumber();
+				setChild(i, e.getLeftChild().getPageNumber());
 				break;
 			}	
 		}
-		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
+		setChild(rid.getTupleNumber(), e.getRightChild().getPageNumber());
+		setKey(rid.getTupleNumber(), e.getKey());
 	}
 
 	/**
@@ -456,15 +276,16 @@ public class BTreeInternalPage extends BTreePage {
 				throw new DbException("child page category mismatch in insertEntry");
 
 			childCategory = e.getLeftChild().pgcateg();
+			writeByte(INDEX_SIZE, (byte) childCategory);
 		}
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
 		if(getNumEmptySlots() == getMaxEntries()) {
-			children[0] = e.getLeftChild().getPageNumber();
-			children[1] = e.getRightChild().getPageNumber();
-			keys[1] = e.getKey();
+			setChild(0, e.getLeftChild().getPageNumber());
+			setChild(1, e.getRightChild().getPageNumber());
+			setKey(1, e.getKey());
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
@@ -472,13 +293,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// find the first empty slot, starting from 1
-		int emptySlot = -1;
-		for (int i=1; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
+		int emptySlot = SlotBitmap.nextEmpty(data, headerOffset, numSlots, 1);
 
 		if (emptySlot == -1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
@@ -498,7 +313,7 @@ public class BTreeInternalPage extends BTreePage {
 					}
 					lessOrEqKey = i;
 					if(children[i] == e.getRightChild().getPageNumber()) {
-						children[i] = e.getLeftChild().getPageNumber();
+						setChild(i, e.getLeftChild().getPageNumber());
 					}
 				}
 				else if(lessOrEqKey != -1) {
@@ -544,8 +359,8 @@ public class BTreeInternalPage extends BTreePage {
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
-		children[goodSlot] = e.getRightChild().getPageNumber();
+		setKey(goodSlot, e.getKey());
+		setChild(goodSlot, e.getRightChild().getPageNumber());
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
@@ -556,8 +371,8 @@ public class BTreeInternalPage extends BTreePage {
 	private void moveEntry(int from, int to) {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
-			keys[to] = keys[from];
-			children[to] = children[from];
+			setKey(to, keys[from]);
+			setChild(to, children[from]);
 			markSlotUsed(from, false);
 		}
 	}
@@ -573,36 +388,31 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
+		// leave out slot 0 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		int used = SlotBitmap.countUsed(data, headerOffset, numSlots) - (isSlotUsed(0) ? 1 : 0);
+		return numSlots - 1 - used;
 	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		return isBitSet(headerOffset, i);
 	}
 
 	/**
-	 * Abstraction to fill or clear a slot on this page.
+	 * Abstraction to fill or clear a slot on this page. A cleared slot's
+	 * key and child pointer bytes are zeroed.
 	 */
 	private void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		setBit(headerOffset, i, value);
+		if(!value) {
+			if(i > 0)
+				zeroBytes(keyOffset(i), td.getFieldType(keyField).getLen());
+			zeroBytes(childOffset(i), INDEX_SIZE);
+		}
 	}
 
 	/**
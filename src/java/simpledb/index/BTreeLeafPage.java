@@ -7,6 +7,7 @@ import simpledb.common.Debug;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.storage.*;
+import simpledb.util.SlotBitmap;
 
 import java.util.*;
 import java.io.*;
@@ -20,9 +21,10 @@ import java.io.*;
  *
  */
 public class BTreeLeafPage extends BTreePage {
-	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
+	private final int headerOffset = 3 * INDEX_SIZE;
+	private final int slotsOffset;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -66,46 +68,18 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		super(id, key, data);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		this.slotsOffset = headerOffset + getHeaderSize();
 
-		// Read the parent and sibling pointers
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.leftSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.rightSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		// Read the sibling pointers
+		this.leftSibling = buf.getInt(INDEX_SIZE);
+		this.rightSibling = buf.getInt(2 * INDEX_SIZE);
 
+		// read the actual records of this page
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
-		}
-		dis.close();
+		for (int i=0; i<tuples.length; i++)
+			tuples[i] = readTuple(i);
 
 		setBeforeImage();
 	}
@@ -135,12 +109,12 @@ public class BTreeLeafPage extends BTreePage {
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
+			// copied under the lock: once a change has started, data is no
+			// longer the before image
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				return new BTreeLeafPage(pid,oldData,keyField);
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -149,137 +123,37 @@ public class BTreeLeafPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
+	private int slotOffset(int i) {
+		return slotsOffset + i * td.getSize();
 	}
 
 	/**
-	 * Read tuples from the source file.
+	 * Read the tuple in the given slot from the page data, or return null if
+	 * the slot is empty.
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
-			}
+	private Tuple readTuple(int slotId) {
+		if (!isSlotUsed(slotId))
 			return null;
-		}
 
 		// read fields in the tuple
 		Tuple t = new Tuple(td);
-		RecordId rid = new RecordId(pid, slotId);
-		t.setRecordId(rid);
-		try {
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = td.getFieldType(j).parse(dis);
-				t.setField(j, f);
-			}
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
+		t.setRecordId(new RecordId(pid, slotId));
+		int offset = slotOffset(slotId);
+		for (int j=0; j<td.numFields(); j++) {
+			Type type = td.getFieldType(j);
+			t.setField(j, type.parse(buf, offset));
+			offset += type.getLen();
 		}
-
 		return t;
 	}
 
-	/**
-	 * Generates a byte array representing the contents of this page.
-	 * Used to serialize this page to disk.
-	 * <p>
-	 * The invariant here is that it should be possible to pass the byte
-	 * array generated by getPageData to the BTreeLeafPage constructor and
-	 * have it produce an identical BTreeLeafPage object.
-	 *
-	 * @see #BTreeLeafPage
-	 * @return A byte array corresponding to the bytes of this page.
-	 */
-	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent and sibling pointers
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-		// create the tuples
-		for (int i=0; i<tuples.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+	/** Write the fields of t into the given slot of the page data. */
+	private void writeTuple(int slotId, Tuple t) {
+		int offset = slotOffset(slotId);
+		for (int j=0; j<td.numFields(); j++) {
+			writeField(offset, t.getField(j));
+			offset += td.getFieldType(j).getLen();
 		}
-
-		return baos.toByteArray();
 	}
 
 	/**
@@ -314,13 +188,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("type mismatch, in addTuple");
 
 		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
+		int emptySlot = SlotBitmap.nextEmpty(data, headerOffset, numSlots, 0);
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
@@ -328,13 +196,11 @@ public class BTreeLeafPage extends BTreePage {
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
 		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
+		for (int i=nextUsedSlot(0); i>=0; i=nextUsedSlot(i+1)) {
+			if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				lessOrEqKey = i;
+			else
+				break;	
 		}
 
 		// shift records back or forward to fill empty slot and make room for new record
@@ -358,6 +224,7 @@ public class BTreeLeafPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
+		writeTuple(goodSlot, t);
 		tuples[goodSlot] = t;
 	}
 
@@ -368,6 +235,7 @@ public class BTreeLeafPage extends BTreePage {
 	private void moveRecord(int from, int to) {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
+			moveBytes(slotOffset(from), slotOffset(to), td.getSize());
 			RecordId rid = new RecordId(pid, to);
 			tuples[to] = tuples[from];
 			tuples[to].setRecordId(rid);
@@ -415,6 +283,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 			leftSibling = id.getPageNumber();
 		}
+		writeInt(INDEX_SIZE, leftSibling);
 	}
 
 	/**
@@ -435,6 +304,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 			rightSibling = id.getPageNumber();
 		}
+		writeInt(2 * INDEX_SIZE, rightSibling);
 	}
 
 	/**
@@ -448,34 +318,39 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		return numSlots - SlotBitmap.countUsed(data, headerOffset, numSlots);
 	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		return isBitSet(headerOffset, i);
 	}
 
 	/**
-	 * Abstraction to fill or clear a slot on this page.
+	 * @return the first used slot at or after the given one, or -1 if there is none
 	 */
-	private void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
+	int nextUsedSlot(int from) {
+		return SlotBitmap.nextUsed(data, headerOffset, numSlots, from);
+	}
+
+	/**
+	 * @return the last used slot at or before the given one, or -1 if there is none
+	 */
+	int previousUsedSlot(int from) {
+		return SlotBitmap.previousUsed(data, headerOffset, numSlots, from);
+	}
 
+	/**
+	 * Abstraction to fill or clear a slot on this page. A cleared slot's
+	 * bytes are zeroed.
+	 */
+	private void markSlotUsed(int i, boolean value) {
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		setBit(headerOffset, i, value);
+		if(!value)
+			zeroBytes(slotOffset(i), td.getSize());
 	}
 
 	/**
@@ -536,15 +411,14 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (true) {
-				nextToReturn = p.getTuple(curTuple++);
-				if(nextToReturn != null)
-					return true;
-			}
-		} catch(NoSuchElementException e) {
+		int slot = p.nextUsedSlot(curTuple);
+		if (slot < 0) {
+			curTuple = p.getMaxTuples();
 			return false;
 		}
+		nextToReturn = p.getTuple(slot);
+		curTuple = slot + 1;
+		return true;
 	}
 
 	public Tuple next() {
@@ -585,16 +459,14 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (curTuple >= 0) {
-				nextToReturn = p.getTuple(curTuple--);
-				if(nextToReturn != null)
-					return true;
-			}
-			return false;
-		} catch(NoSuchElementException e) {
+		int slot = p.previousUsedSlot(curTuple);
+		if (slot < 0) {
+			curTuple = -1;
 			return false;
 		}
+		nextToReturn = p.getTuple(slot);
+		curTuple = slot - 1;
+		return true;
 	}
 
 	public Tuple next() {
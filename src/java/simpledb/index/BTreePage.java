@@ -5,10 +5,14 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -28,8 +32,14 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	// the page as it is on disk; every change is written through to it, so
+	// serializing the page is a copy
+	protected final byte[] data;
+	protected final ByteBuffer buf;
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
+	// oldData is data itself until the next change, which copies it first
+	private boolean beforeImageShared;
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -53,11 +63,86 @@ public abstract class BTreePage implements Page {
 	 * 
 	 * @param id - the id of this page
 	 * @param key - the field which the index is keyed on
+	 * @param data - the raw data of this page, which is copied
 	 */
-	public BTreePage(BTreePageId id, int key) {
+	public BTreePage(BTreePageId id, int key, byte[] data) {
 		this.pid = id;
 		this.keyField = key;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+		this.buf = ByteBuffer.wrap(this.data);
+		this.parent = buf.getInt(0);
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+			beforeImageShared = true;
+		}
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte
+	 * array generated by getPageData to the constructor of the page's class
+	 * and have it produce an identical page object.
+	 *
+	 * @return A byte array corresponding to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		return data.clone();
+	}
+
+	/** Must be called before every change to data. */
+	private void beforeWrite() {
+		if (beforeImageShared) {
+			synchronized(oldDataLock)
+			{
+				oldData = data.clone();
+				beforeImageShared = false;
+			}
+		}
+	}
+
+	protected void writeInt(int offset, int value) {
+		beforeWrite();
+		buf.putInt(offset, value);
+	}
+
+	protected void writeByte(int offset, byte value) {
+		beforeWrite();
+		data[offset] = value;
+	}
+
+	protected void writeField(int offset, Field f) {
+		beforeWrite();
+		f.serialize(buf, offset);
+	}
+
+	protected void moveBytes(int from, int to, int length) {
+		beforeWrite();
+		System.arraycopy(data, from, data, to, length);
+	}
+
+	protected void zeroBytes(int offset, int length) {
+		beforeWrite();
+		Arrays.fill(data, offset, offset + length, (byte) 0);
+	}
+
+	/** Read bit i of the slot bitmap that starts at offset. */
+	protected boolean isBitSet(int offset, int i) {
+		return (data[offset + i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	protected void setBit(int offset, int i, boolean value) {
+		beforeWrite();
+		if(value)
+			data[offset + i / 8] |= 1 << (i % 8);
+		else
+			data[offset + i / 8] &= (0xFF ^ (1 << (i % 8)));
 	}
 
 	/**
@@ -113,6 +198,7 @@ public abstract class BTreePage implements Page {
 		else {
 			parent = id.getPageNumber();
 		}
+		writeInt(0, parent);
 	}
 
 	/**
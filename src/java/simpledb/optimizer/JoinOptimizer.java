@@ -3,6 +3,8 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -73,7 +75,11 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (lj.p == Predicate.Op.EQUALS && SortMergeJoin.isSorted(plan1, t1id)
+                && SortMergeJoin.isSorted(plan2, t2id)) {
+            // both inputs are already in order: merge them without a table
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -85,6 +91,8 @@ public class JoinOptimizer {
             } catch (Exception e) {
                 j = new Join(p, plan1, plan2);
             }
+        } else if (SortMergeJoin.supports(lj.p)) {
+            j = new SortMergeJoin(p, plan1, plan2);
         } else {
             j = new Join(p, plan1, plan2);
         }
@@ -121,6 +129,21 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true, true);
+    }
+
+    /**
+     * Estimate the cost of a join, as {@link #estimateJoinCost(LogicalJoinNode,
+     * int, int, double, double)}, where either side may be an earlier join
+     * rather than a scan of its table.
+     * 
+     * @param table1
+     *            true if the left-hand side is a scan of the table j.t1Alias
+     * @param table2
+     *            true if the right-hand side is a scan of the table j.t2Alias
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean table1, boolean table2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -130,11 +153,40 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
+            // range joins are always merged, and equality joins when both
+            // inputs are scans of tables already in order; see instantiateJoin
+            boolean sorted1 = table1 && isSorted(j.t1Alias, j.f1PureName);
+            boolean sorted2 = table2 && isSorted(j.t2Alias, j.f2PureName);
+            if (j.p == Predicate.Op.EQUALS ? sorted1 && sorted2 : SortMergeJoin.supports(j.p)) {
+                double matches = j.p == Predicate.Op.EQUALS ? Math.max(card1, card2) : 0.3 * card1 * card2;
+                return cost1 + cost2 + (sorted1 ? 0 : sortCost(card1))
+                        + (sorted2 ? 0 : sortCost(card2)) + card1 + card2 + matches;
+            }
             return (cost1 + card1*cost2)
                     + (card1*card2);
         }
     }
 
+    /** The comparisons to sort a number of tuples. */
+    private static double sortCost(int card) {
+        return card * Math.log(Math.max(card, 2)) / Math.log(2);
+    }
+
+    /**
+     * Return true if the table with the given alias is a B+ tree keyed on a
+     * field, so that a scan of it returns tuples in order of the field
+     */
+    private boolean isSorted(String tableAlias, String field) {
+        Integer tableId = p.getTableId(tableAlias);
+        if (tableId == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return false;
+        int key = ((BTreeFile) f).keyField();
+        return f.getTupleDesc().getFieldName(key).equals(field);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -330,6 +382,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is a scan of its table, not the joins in prevBest
+        boolean t1table = true, t2table = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new ArrayList<>();
@@ -365,6 +419,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                t1table = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -381,6 +436,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                t2table = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -394,10 +450,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                t1table, t2table);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                t2table, t1table);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -0,0 +1,73 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the dirty pages of a {@link BufferPool} in the background, so that
+ * a commit only has to force the log.
+ * <p>
+ * Every round it calls {@link BufferPool#writeBehind()}, which logs and
+ * writes what transactions changed since the round before, and every so
+ * often it takes a fuzzy checkpoint with {@link LogFile#logCheckpoint()}.
+ * The thread exits when it is stopped or when its pool is no longer the
+ * database's. A failed round is reported and retried on the next one: the
+ * pages stay dirty in the pool until they are written.
+ *
+ * @see BufferPool#startBackgroundWriter
+ */
+class BackgroundWriter implements Runnable {
+
+    private final BufferPool pool;
+    private final long writeNanos;
+    private final long checkpointNanos;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    BackgroundWriter(BufferPool pool, long writeNanos, long checkpointNanos) {
+        this.pool = pool;
+        this.writeNanos = writeNanos;
+        this.checkpointNanos = checkpointNanos;
+        this.thread = new Thread(this, "background writer");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /** Stop the thread and wait for the round in progress, if any, to finish. */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        if (thread == Thread.currentThread()) return;
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    public void run() {
+        long lastCheckpoint = System.nanoTime();
+        while (true) {
+            LockSupport.parkNanos(writeNanos);
+            if (stopped || Database.getBufferPool() != pool) return;
+            try {
+                pool.writeBehind();
+                if (checkpointNanos > 0 && System.nanoTime() - lastCheckpoint >= checkpointNanos) {
+                    Database.getLogFile().logCheckpoint();
+                    lastCheckpoint = System.nanoTime();
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -5,14 +5,22 @@ import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
 import simpledb.transaction.LockManager;
+import simpledb.transaction.PageLock;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
-import simpledb.util.LRUCache;
 
 import java.io.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -36,21 +44,93 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    LRUCache<PageId, Page> cache;
+    /** Upper bound on the number of slots in a scan's buffer ring. */
+    public static final int MAX_SCAN_RING_PAGES = 16;
+
+    /** Default number of pages a sequential scan reads ahead. */
+    public static final int DEFAULT_PREFETCH_DEPTH = 8;
+
+    /** The page table. Replacement state lives in the eviction policy. */
+    private final Map<PageId, Page> pages;
+
+    private final EvictionPolicy evictionPolicy;
 
     private LockManager lockManager;
 
+    /**
+     * The pages each running transaction fetched for writing, a superset of
+     * the pages it dirtied, so that commit and abort only look at those.
+     */
+    private final Map<TransactionId, Set<PageId>> writeSets = new ConcurrentHashMap<>();
+
     private int numPages;
 
+    private volatile boolean scanRingsEnabled = true;
+
+    private volatile int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+
+    /** Pages installed by a read-ahead that nobody has asked for yet. */
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+
+    /** Read-ahead reads in progress, so that a reader waits for one instead of reading the page again. */
+    private final Map<PageId, CompletableFuture<Page>> prefetching = new ConcurrentHashMap<>();
+
+    /**
+     * Bumped after every page write and discard. A read-ahead only installs
+     * the page it read if this did not change meanwhile, as the copy it read
+     * may be out of date otherwise.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Pages whose last logged image is not on disk, with the LSN the log has
+     * to be replayed from to bring each one up to date (its recovery LSN).
+     */
+    private final Map<PageId, Long> recoveryLsns = new ConcurrentHashMap<>();
+
+    /** The end of the last log record of each page in recoveryLsns, which must be durable before the page is written. */
+    private final Map<PageId, Long> pageLsns = new ConcurrentHashMap<>();
+
+    /** Images the background writer logged and has yet to write, protected by this. */
+    private final Map<PageId, PendingWrite> pendingWrites = new LinkedHashMap<>();
+
+    /**
+     * Held by a transaction while it changes pages in insertTuple and
+     * deleteTuple. Another thread only steals the transaction's dirty pages
+     * when it can take the latch, so it never logs a page halfway through a
+     * change.
+     */
+    private final Map<TransactionId, ReentrantLock> latches = new ConcurrentHashMap<>();
+
+    /** The background writer, or null if commits write their own pages. */
+    private volatile BackgroundWriter writer;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, ClockEvictionPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages with the given
+     * replacement policy, e.g. <code>new BufferPool(50, TwoQueueEvictionPolicy::new)</code>.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy creates the replacement policy for a pool of the given size
+     */
+    public BufferPool(int numPages, IntFunction<EvictionPolicy> evictionPolicy) {
         // some code goes here
         this.numPages = numPages;
-        this.cache = new LRUCache<>(numPages);
+        this.pages = new ConcurrentHashMap<>();
+        this.evictionPolicy = evictionPolicy.apply(numPages);
         this.lockManager = new LockManager();
     }
     
@@ -68,6 +148,124 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /** Number of getPage calls served from the pool since it was created. */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Number of getPage calls that had to read the page from disk. */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Number of pages a read-ahead installed in the pool since it was created. */
+    public long getPrefetchCount() {
+        return prefetches.sum();
+    }
+
+    /**
+     * Set how many pages sequential scans read ahead of the page they are
+     * on, or 0 to turn read-ahead off. The default is
+     * {@link #DEFAULT_PREFETCH_DEPTH}; a quarter of the pool is the most a
+     * scan reads ahead.
+     * @see ReadAhead
+     */
+    public void setPrefetchDepth(int depth) {
+        if (depth < 0) throw new IllegalArgumentException("prefetch depth must not be negative");
+        this.prefetchDepth = depth;
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    private int readAheadDepth() {
+        return Math.min(prefetchDepth, numPages / 4);
+    }
+
+    /**
+     * Create a read-ahead for a sequential scan of the pages of a heap file
+     * in page number order, or return null if read-ahead is off.
+     *
+     * @param numPages the number of pages the scan will read
+     */
+    public ReadAhead newReadAhead(int tableId, int numPages) {
+        int depth = readAheadDepth();
+        return depth == 0 ? null : new ReadAhead.Pages(this, depth, tableId, numPages);
+    }
+
+    /**
+     * Create a read-ahead for a scan along a chain of pages, such as the
+     * leaves of a B+ tree, or return null if read-ahead is off.
+     *
+     * @param nextPage the page that comes after a given one, or null at the end
+     */
+    public ReadAhead newReadAhead(Function<Page, PageId> nextPage) {
+        int depth = readAheadDepth();
+        return depth == 0 ? null : new ReadAhead.Chain(this, depth, nextPage);
+    }
+
+    /**
+     * Start a thread that writes dirty pages to disk in the background and
+     * takes a fuzzy checkpoint every so often, replacing the one started
+     * before, if any. While it runs, committing a transaction only logs its
+     * pages and forces the log (NO FORCE); the writer also writes pages of
+     * running transactions, always after the log records that describe
+     * them (WAL).
+     *
+     * @param writeInterval how long the writer sleeps between rounds
+     * @param checkpointInterval how often it takes a checkpoint, or 0 for never
+     * @see LogFile#logCheckpoint()
+     */
+    public synchronized void startBackgroundWriter(long writeInterval, long checkpointInterval, TimeUnit unit) {
+        stopBackgroundWriter();
+        writer = new BackgroundWriter(this, unit.toNanos(writeInterval), unit.toNanos(checkpointInterval));
+        writer.start();
+    }
+
+    /**
+     * Stop the background writer. Commits write their own pages again; pages
+     * the writer had yet to write are written when they are evicted or
+     * flushed.
+     */
+    public void stopBackgroundWriter() {
+        BackgroundWriter w;
+        synchronized (this) {
+            w = writer;
+            writer = null;
+        }
+        // joined without the pool's lock, which a round in progress may need
+        if (w != null) w.stop();
+    }
+
+    public boolean isBackgroundWriterRunning() {
+        return writer != null;
+    }
+
+    /**
+     * Enable or disable buffer rings for large scans. Enabled by default.
+     * @see #newScanRing(int)
+     */
+    public void setScanRingsEnabled(boolean enabled) {
+        this.scanRingsEnabled = enabled;
+    }
+
+    /**
+     * Create a buffer ring for a sequential scan over a file of the given
+     * number of pages, or return null if the file is small enough to be
+     * scanned through the shared pool. Unlike PostgreSQL, which switches to a
+     * ring once a table is bigger than a quarter of shared buffers, only
+     * files that cannot fit in the pool at all are scanned through a ring:
+     * pools here are tiny and repeated scans of a table that fits are
+     * expected to be served from memory.
+     *
+     * @param filePages the number of pages the scan will read
+     */
+    public BufferRing newScanRing(int filePages) {
+        if (!scanRingsEnabled || filePages <= numPages) return null;
+        return new BufferRing(Math.max(2, Math.min(MAX_SCAN_RING_PAGES, numPages / 8)));
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -83,27 +281,133 @@ public class BufferPool {
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    Random random = new Random();
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        if (!lockManager.tryLock(pid, tid,perm.equals(Permissions.READ_ONLY) ? 0 : 1, 1000+random.nextInt(1500)))
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but if the page has to be read from disk, read it through the given
+     * buffer ring so that it does not push other pages out of the pool.
+     *
+     * @param ring the scan's buffer ring, or null to use the shared pool
+     * @see #newScanRing(int)
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        try {
+            lockManager.lock(pid, tid, perm.equals(Permissions.READ_ONLY) ? PageLock.SHARE : PageLock.EXCLUSIVE);
+        } catch (DeadlockException e) {
             throw new TransactionAbortedException();
-        Page page = cache.get(pid);
-        if (page != null)return page;
-        return loadPage(pid);
+        }
+        if (perm == Permissions.READ_WRITE) addToWriteSet(tid, pid);
+        Page page = pages.get(pid);
+        if (page != null) {
+            hits.increment();
+            evictionPolicy.recordAccess(pid);
+            // a page read ahead of a scan joins its ring once the scan gets there
+            if (prefetched.remove(pid) && ring != null) recycle(ring.add(pid));
+            return page;
+        }
+        misses.increment();
+        CompletableFuture<Page> reading = prefetching.get(pid);
+        if (reading != null) {
+            page = reading.join();
+            if (page != null && pages.get(pid) == page) {
+                if (prefetched.remove(pid) && ring != null) recycle(ring.add(pid));
+                return page;
+            }
+        }
+        return loadPage(pid, ring);
+    }
+
+    /**
+     * Read a page into the pool for a read-ahead, without taking a lock; the
+     * reader locks the page when it gets there. Nothing is installed if the
+     * page is in the pool already, if it cannot be read, if no page can be
+     * evicted to make room, if a page was written or discarded while this
+     * one was being read, or if the reader no longer wants it.
+     *
+     * @param wanted whether the reader has yet to get to the page
+     * @return the page in the pool or the page read, or null if it could not be read
+     */
+    Page prefetch(PageId pid, BooleanSupplier wanted) {
+        Page page = pages.get(pid);
+        if (page != null) return page;
+        CompletableFuture<Page> reading = new CompletableFuture<>();
+        CompletableFuture<Page> other = prefetching.putIfAbsent(pid, reading);
+        if (other != null) return other.join();
+        try {
+            long stamp = invalidations.get();
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            if (page != null) installPrefetched(page, stamp, wanted);
+        } catch (Exception e) {
+            // read-ahead is only a hint, the reader reads the page itself
+            page = null;
+        } finally {
+            prefetching.remove(pid);
+            reading.complete(page);
+        }
+        return page;
+    }
+
+    private synchronized void installPrefetched(Page page, long stamp, BooleanSupplier wanted) throws DbException {
+        PageId pid = page.getId();
+        // a page the reader has passed would never leave the pool through its ring
+        if (stamp != invalidations.get() || pages.containsKey(pid) || !wanted.getAsBoolean()) return;
+        // marked before it is visible, so a reader that finds it puts it in its ring
+        prefetched.add(pid);
+        try {
+            cachePage(page);
+        } catch (DbException e) {
+            prefetched.remove(pid);
+            throw e;
+        }
+        prefetches.increment();
     }
 
-    private Page loadPage(PageId pageId) throws DbException {
+    private void addToWriteSet(TransactionId tid, PageId pid) {
+        writeSets.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    private Page loadPage(PageId pageId, BufferRing ring) throws DbException {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(pageId.getTableId());
         Page page = dbFile.readPage(pageId);
         if (page != null) {
-            cache.put(pageId, page);
-            if (cache.getSize() >= numPages) evictPage();
+            if (ring != null) recycle(ring.add(pageId));
+            cachePage(page);
         }
         return page;
     }
 
+    /**
+     * Drop a page whose ring slot is being reused, unless it has been
+     * dirtied since the scan read it.
+     */
+    private synchronized void recycle(PageId pid) {
+        if (pid == null) return;
+        Page page = pages.get(pid);
+        if (isClean(pid, page)) dropPage(pid);
+    }
+
+    private synchronized void dropPage(PageId pid) {
+        if (pages.remove(pid) != null) evictionPolicy.recordRemove(pid);
+        prefetched.remove(pid);
+    }
+
+    /**
+     * Install a page in the page table, evicting another page first if the
+     * pool is full.
+     */
+    private synchronized void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        if (!pages.containsKey(pid) && pages.size() >= numPages) evictPage();
+        if (pages.put(pid, page) == null) evictionPolicy.recordInsert(pid);
+        else evictionPolicy.recordAccess(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -154,17 +458,29 @@ public class BufferPool {
             }else {
                 discardPageByTxn(tid);
             }
-            lockManager.releaseLockByTxn(tid);
         }catch (Exception e){
             e.printStackTrace();
         }
+        writeSets.remove(tid);
+        latches.remove(tid);
+        lockManager.releaseLockByTxn(tid);
     }
 
-    private void discardPageByTxn(TransactionId tid) {
-        Iterator<Page> it = cache.getValueIterator();
-        while (it.hasNext()){
-            Page next = it.next();
-            if (next.isDirty()==tid)discardPage(next.getId());
+    private synchronized void discardPageByTxn(TransactionId tid) {
+        for (PageId pid : writeSets.getOrDefault(tid, Collections.emptySet())) {
+            Page page = pages.get(pid);
+            // a page is only marked dirty once the operation returns, so one
+            // that is not dirty yet may still hold a half-done change, such
+            // as a B+ tree split cut short by a deadlock; only skip pages
+            // that another transaction has dirtied since
+            if (page == null || (page.isDirty() != tid && page.isDirty() != null)) continue;
+            if (recoveryLsns.containsKey(pid)) {
+                // the disk does not have the last committed state yet, so
+                // go back to it in the pool: it is the page's before image
+                pages.put(pid, page.getBeforeImage());
+            } else {
+                discardPage(pid);
+            }
         }
     }
 
@@ -188,11 +504,18 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile heapFile =  Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> list = heapFile.insertTuple(tid, t);
-        for (Page page : list) {
-            page.markDirty(true,tid);
-            cache.put(page.getId(),page);
-            evictPage();
+        List<Page> list;
+        ReentrantLock latch = latches.computeIfAbsent(tid, k -> new ReentrantLock());
+        latch.lock();
+        try {
+            list = heapFile.insertTuple(tid, t);
+            for (Page page : list) {
+                page.markDirty(true,tid);
+                addToWriteSet(tid, page.getId());
+                cachePage(page);
+            }
+        } finally {
+            latch.unlock();
         }
     }
 
@@ -215,12 +538,19 @@ public class BufferPool {
         // not necessary for lab1
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile heapFile =  Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> list = heapFile.deleteTuple(tid, t);
-        //todo BufferPool更新脏页
-        for (Page page : list) {
-            page.markDirty(true,tid);
-            cache.put(page.getId(),page);
-            evictPage();
+        List<Page> list;
+        ReentrantLock latch = latches.computeIfAbsent(tid, k -> new ReentrantLock());
+        latch.lock();
+        try {
+            list = heapFile.deleteTuple(tid, t);
+            //todo BufferPool更新脏页
+            for (Page page : list) {
+                page.markDirty(true,tid);
+                addToWriteSet(tid, page.getId());
+                cachePage(page);
+            }
+        } finally {
+            latch.unlock();
         }
     }
 
@@ -232,8 +562,7 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Iterator<Page> iterator = cache.getValueIterator();
-        while (iterator.hasNext())flushPage(iterator.next());
+        for (Page page : pages.values()) flushPage(page);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -247,7 +576,11 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        cache.remove(pid);
+        dropPage(pid);
+        pendingWrites.remove(pid);
+        recoveryLsns.remove(pid);
+        pageLsns.remove(pid);
+        invalidations.incrementAndGet();
     }
 
     /**
@@ -257,54 +590,227 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        flushPage(cache.get(pid));
+        flushPage(pages.get(pid));
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * Log the pages of the specified transaction. Unless the background
+     * writer is running, also write them to disk; otherwise they are left
+     * to the writer and the commit only has to force the log.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        Iterator<Page> it = cache.getValueIterator();
-        while (it.hasNext()){
-            Page next = it.next();
-            next.setBeforeImage();
-            if (next.isDirty()==tid)flushPage(next);
+        writePending();
+        List<Page> images = new ArrayList<>();
+        for (PageId pid : writeSets.getOrDefault(tid, Collections.emptySet())) {
+            Page page = pages.get(pid);
+            if (page == null) continue;
+            if (page.isDirty() == tid) {
+                images.add(logImage(tid, page));
+                page.markDirty(false, null);
+            } else if (!recoveryLsns.containsKey(pid)) {
+                // the page's committed state is now what the transaction left
+                page.setBeforeImage();
+            }
+        }
+        if (writer != null || images.isEmpty()) return;
+        // one force covers the update records of every page
+        Database.getLogFile().force();
+        for (Page image : images) writeImage(image, pageLsns.get(image.getId()));
+    }
+
+    /**
+     * Log the current image of a page that a transaction changed, and make it
+     * the page's before image, so that the page's next record only has to
+     * hold what changed since. The caller must hold the pool's lock, and the
+     * transaction must not be changing pages meanwhile.
+     *
+     * @return the image that was logged, which no one else can change
+     */
+    private Page logImage(TransactionId dirtier, Page page) throws IOException {
+        LogFile log = Database.getLogFile();
+        long start = log.endLsn();
+        Page before = page.getBeforeImage();
+        page.setBeforeImage();
+        Page image = page.getBeforeImage();
+        long end = log.logWrite(dirtier, before, image);
+        recoveryLsns.putIfAbsent(page.getId(), start);
+        pageLsns.put(page.getId(), end);
+        return image;
+    }
+
+    /**
+     * Write a logged image of a page once the log is durable up to lsn, the
+     * end of the page's last record when the image was taken. The page is no
+     * longer dirty on disk unless it was logged again since.
+     */
+    private synchronized void writeImage(Page image, long lsn) throws IOException {
+        PageId pid = image.getId();
+        Database.getLogFile().force(lsn);
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+        invalidations.incrementAndGet();
+        if (pageLsns.remove(pid, lsn)) recoveryLsns.remove(pid);
+    }
+
+    /**
+     * Write the images the background writer logged but has not written yet.
+     * Called before anything else writes pages, or reads them back from disk
+     * to roll a transaction back.
+     */
+    synchronized void writePending() throws IOException {
+        if (pendingWrites.isEmpty()) return;
+        for (Map.Entry<PageId, PendingWrite> e : new ArrayList<>(pendingWrites.entrySet())) {
+            writeImage(e.getValue().image, e.getValue().lsn);
+        }
+        pendingWrites.clear();
+    }
+
+    /**
+     * Write the last logged image of a page if it is not on disk yet, so that
+     * a rollback can start from the page on disk.
+     */
+    synchronized void writeLogged(PageId pid) throws IOException {
+        writePending();
+        Page page = pages.get(pid);
+        Long lsn = pageLsns.get(pid);
+        if (page != null && lsn != null && recoveryLsns.containsKey(pid)) writeImage(page.getBeforeImage(), lsn);
+    }
+
+    /**
+     * One round of the background writer: take an image of every page whose
+     * latest logged state is not on disk yet, and of the pages of running
+     * transactions that are not changing pages right now (STEAL), logging the
+     * latter first. The log is then forced without holding the pool's lock,
+     * and the images are written.
+     *
+     * @return the number of pages written
+     */
+    int writeBehind() throws IOException {
+        long lsn = 0;
+        int count;
+        synchronized (this) {
+            for (PageId pid : new ArrayList<>(recoveryLsns.keySet())) {
+                Page page = pages.get(pid);
+                Long pageLsn = pageLsns.get(pid);
+                if (page == null || pageLsn == null) continue;
+                // the before image of a logged page is its last logged image
+                pendingWrites.put(pid, new PendingWrite(page.getBeforeImage(), pageLsn));
+            }
+            for (Map.Entry<TransactionId, Set<PageId>> e : writeSets.entrySet()) {
+                TransactionId tid = e.getKey();
+                ReentrantLock latch = latches.get(tid);
+                if (latch == null || !latch.tryLock()) continue;
+                try {
+                    for (PageId pid : e.getValue()) {
+                        Page page = pages.get(pid);
+                        if (page == null || page.isDirty() != tid) continue;
+                        Page image = logImage(tid, page);
+                        pendingWrites.put(pid, new PendingWrite(image, pageLsns.get(pid)));
+                    }
+                } finally {
+                    latch.unlock();
+                }
+            }
+            for (PendingWrite w : pendingWrites.values()) lsn = Math.max(lsn, w.lsn);
+            count = pendingWrites.size();
         }
+        if (count == 0) return 0;
+        Database.getLogFile().force(lsn);
+        writePending();
+        return count;
+    }
+
+    /** The smallest recovery LSN of a page, or -1 if every logged image is on disk. */
+    long minRecoveryLsn() {
+        long min = -1;
+        for (long lsn : recoveryLsns.values()) if (min < 0 || lsn < min) min = lsn;
+        return min;
+    }
+
+    /**
+     * Whether a page can leave the pool without being written: no running
+     * transaction changed it and its last logged image is on disk.
+     */
+    private boolean isClean(PageId pid, Page page) {
+        return page == null || (page.isDirty() == null && !recoveryLsns.containsKey(pid));
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * A clean page is preferred, then a committed page whose last image is
+     * not on disk yet, which is written first. As a last resort a page of a
+     * running transaction that is not changing pages right now is stolen:
+     * its image is logged and written first (STEAL), and recovery or a
+     * rollback undoes it on disk if the transaction does not commit.
      */
     private synchronized void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        //todo 修改驱逐策略，不丢弃脏页
-        Page page = null;
-        int i = 0;
-        while (i<numPages && (page=cache.evictOldest()) != null){
-            //System.out.println(i);
-            i++;
-            if (page.isDirty()!=null)
-                cache.put(page.getId(),page);
-            else return;
+        PageId victim = evictionPolicy.evict(pid -> isClean(pid, pages.get(pid)));
+        try {
+            if (victim == null) {
+                victim = evictionPolicy.evict(pid -> pages.get(pid).isDirty() == null);
+                if (victim != null) flushPage(pages.get(victim));
+            }
+            if (victim == null) {
+                // latch the victim's transaction while choosing it, so that
+                // the page cannot change between the choice and the write
+                ReentrantLock[] latched = new ReentrantLock[1];
+                victim = evictionPolicy.evict(pid -> {
+                    TransactionId dirtier = pages.get(pid).isDirty();
+                    ReentrantLock latch = dirtier == null ? null : latches.get(dirtier);
+                    if (latch == null || !latch.tryLock()) return false;
+                    latched[0] = latch;
+                    return true;
+                });
+                if (victim != null) {
+                    try {
+                        flushPage(pages.get(victim));
+                    } finally {
+                        latched[0].unlock();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the page stays in the pool, so the policy must keep tracking it
+            evictionPolicy.recordInsert(victim);
+            throw new DbException("could not write page " + victim + ": " + e.getMessage());
         }
-        //System.out.println(i + "  " + numPages);
-        if (i==numPages)throw new DbException("All pages in bufferPool are dirty");
+        if (victim == null)throw new DbException("All pages in bufferPool are dirty");
+        pages.remove(victim);
+        prefetched.remove(victim);
     }
 
+    /**
+     * Write a page to disk: its current image if a transaction changed it,
+     * after logging that image, or else its last logged image if that is not
+     * on disk yet.
+     */
     private synchronized void flushPage(Page page) throws IOException {
         if (page==null)return;
+        writePending();
         TransactionId dirtier = page.isDirty();
-        if (dirtier != null){
-            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-            Database.getLogFile().force();
+        PageId pid = page.getId();
+        if (dirtier != null) {
+            writeImage(logImage(dirtier, page), pageLsns.get(pid));
+            page.markDirty(false, null);
+        } else if (recoveryLsns.containsKey(pid)) {
+            writeImage(page.getBeforeImage(), pageLsns.get(pid));
         }
-        DbFile databaseFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+    }
 
-        databaseFile.writePage(page);
-        page.markDirty(false,null);
+    /** An image the background writer logged, and the LSN the log must be durable up to before it is written. */
+    private static final class PendingWrite {
+        final Page image;
+        final long lsn;
+
+        PendingWrite(Page image, long lsn) {
+            this.image = image;
+            this.lsn = lsn;
+        }
     }
 
 }
@@ -0,0 +1,44 @@
+package simpledb.storage;
+
+/**
+ * A small private ring of buffer pool slots used by large sequential scans,
+ * in the spirit of PostgreSQL's bulk-read buffer access strategy.
+ * <p>
+ * Pages a scan has to read from disk are remembered in the ring. Once the
+ * ring is full, the page read longest ago is dropped from the BufferPool
+ * (if it is still clean) to make room for the next one, instead of letting
+ * the pool's eviction policy throw out pages other queries depend on. A scan
+ * therefore never occupies more than {@link #size()} pages of the shared pool
+ * beyond the ones it hits.
+ * <p>
+ * A ring belongs to one iterator and is not thread-safe.
+ *
+ * @see BufferPool#newScanRing(int)
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, BufferRing)
+ */
+public class BufferRing {
+
+    private final PageId[] slots;
+    private int next = 0;
+
+    public BufferRing(int size) {
+        if (size <= 0) throw new IllegalArgumentException("ring size must be positive");
+        this.slots = new PageId[size];
+    }
+
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Remember a page that was read from disk through this ring.
+     *
+     * @return the page whose slot was reused, or null while the ring is filling up
+     */
+    PageId add(PageId pid) {
+        PageId old = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return old;
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement.
+ * <p>
+ * Tracked pages sit on a circular list swept by a clock hand. A hit only sets
+ * the page's reference bit, without taking any lock, so it never contends
+ * with other hits. When a victim is needed the hand clears the reference bit
+ * of every referenced page it passes and stops at the first unreferenced page
+ * that may be evicted. Pages that cannot be evicted are simply passed over,
+ * so nothing is reshuffled and a sweep costs at most two turns of the clock.
+ * <p>
+ * A newly inserted page starts unreferenced and is placed just behind the
+ * hand, so a page read once by a scan is evicted before a page that has been
+ * hit again since it was loaded.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private static class Frame {
+        final PageId pid;
+        volatile boolean referenced;
+        Frame prev, next;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final Map<PageId, Frame> frames;
+    private Frame hand; // protected by this, null when no page is tracked
+
+    public ClockEvictionPolicy(int capacity) {
+        this.frames = new ConcurrentHashMap<>(Math.max(16, capacity * 2));
+    }
+
+    public synchronized void recordInsert(PageId pid) {
+        if (frames.containsKey(pid)) return;
+        Frame f = new Frame(pid);
+        frames.put(pid, f);
+        if (hand == null) {
+            f.prev = f;
+            f.next = f;
+            hand = f;
+        } else {
+            // just behind the hand, i.e. the last frame the next sweep looks at
+            f.next = hand;
+            f.prev = hand.prev;
+            hand.prev.next = f;
+            hand.prev = f;
+        }
+    }
+
+    public void recordAccess(PageId pid) {
+        Frame f = frames.get(pid);
+        if (f != null) f.referenced = true;
+    }
+
+    public synchronized void recordRemove(PageId pid) {
+        Frame f = frames.remove(pid);
+        if (f != null) unlink(f);
+    }
+
+    public synchronized PageId evict(Predicate<PageId> canEvict) {
+        // one turn to clear reference bits, one more to find a victim
+        for (int steps = 2 * frames.size(); steps > 0 && hand != null; steps--) {
+            Frame f = hand;
+            hand = f.next;
+            if (f.referenced) {
+                f.referenced = false;
+            } else if (canEvict.test(f.pid)) {
+                frames.remove(f.pid);
+                unlink(f);
+                return f.pid;
+            }
+        }
+        return null;
+    }
+
+    private void unlink(Frame f) {
+        if (f.next == f) {
+            hand = null;
+        } else {
+            f.prev.next = f.next;
+            f.next.prev = f.prev;
+            if (hand == f) hand = f.next;
+        }
+        f.prev = null;
+        f.next = null;
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy is the replacement strategy used by the BufferPool to decide
+ * which resident page to throw out when it needs room for a new one.
+ * <p>
+ * The BufferPool owns the page table; the policy only tracks page ids and
+ * their replacement state. {@link #recordAccess} is called on every buffer
+ * pool hit without holding the pool's monitor, so implementations must be
+ * thread-safe and should keep that path as cheap as possible. The other
+ * methods are called while holding the pool's monitor.
+ *
+ * @see BufferPool#BufferPool(int, java.util.function.IntFunction)
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Start tracking a page that has just been added to the buffer pool.
+     */
+    void recordInsert(PageId pid);
+
+    /**
+     * Note a hit on a resident page. Ids that are not tracked are ignored.
+     */
+    void recordAccess(PageId pid);
+
+    /**
+     * Stop tracking a page that left the buffer pool other than through
+     * {@link #evict}, e.g. because it was discarded.
+     */
+    void recordRemove(PageId pid);
+
+    /**
+     * Choose a page to evict and stop tracking it.
+     *
+     * @param canEvict tells whether a tracked page may be evicted right now
+     *                 (the BufferPool refuses to evict dirty pages)
+     * @return the id of the evicted page, or null if no tracked page can be
+     *         evicted
+     */
+    PageId evict(Predicate<PageId> canEvict);
+}
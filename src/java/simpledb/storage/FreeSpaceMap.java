@@ -0,0 +1,91 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.BitSet;
+
+/**
+ * Records which pages of a HeapFile have empty slots, so that an insert can
+ * go straight to such a page instead of reading and locking every page
+ * before it.
+ * <p>
+ * The map is one bit per page, set if the page may have an empty slot, and is
+ * kept in a side file next to the heap file with the name of the heap file
+ * plus {@link #SUFFIX}. Every change is written through to the side file, but
+ * not forced: the map is only a hint. A page marked as having room that turns
+ * out to be full is found full when an insert locks it and is marked full
+ * then; a page wrongly marked full (for instance because the insert that
+ * filled it aborted) is marked again the next time it is written to disk.
+ * Pages beyond the end of the side file, such as pages of a file written by
+ * {@link HeapFileEncoder}, are assumed to have room.
+ */
+class FreeSpaceMap {
+
+    static final String SUFFIX = ".fsm";
+
+    private final File file;
+    private final BitSet free;
+    private RandomAccessFile out;
+
+    /**
+     * Open the free space map of a heap file.
+     *
+     * @param heapFile the heap file
+     * @param numPages the number of pages in the heap file
+     */
+    FreeSpaceMap(File heapFile, int numPages) {
+        this.file = new File(heapFile.getPath() + SUFFIX);
+        BitSet saved = new BitSet();
+        int savedPages = 0;
+        // a new heap file has nothing in common with an old map of the same name
+        if (numPages > 0 && file.exists()) {
+            try {
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                saved = BitSet.valueOf(bytes);
+                savedPages = bytes.length * 8;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            file.delete();
+        }
+        this.free = saved;
+        if (savedPages < numPages) free.set(savedPages, numPages);
+    }
+
+    /**
+     * The first page at or after from, wrapping around at numPages, that may
+     * have an empty slot, or -1 if there is none.
+     */
+    synchronized int nextFree(int from, int numPages) {
+        if (from >= numPages) from = 0;
+        int page = free.nextSetBit(from);
+        if (page < 0 || page >= numPages) {
+            page = free.nextSetBit(0);
+            if (page >= from) page = -1;
+        }
+        return page;
+    }
+
+    /** Record whether a page has an empty slot. */
+    synchronized void setFree(int page, boolean hasRoom) {
+        if (free.get(page) == hasRoom) return;
+        free.set(page, hasRoom);
+        try {
+            if (out == null) out = new RandomAccessFile(file, "rw");
+            // also write the bytes between the end of the file and this one,
+            // which the file would otherwise fill with zeroes, that is "full"
+            long from = Math.min(out.length(), page / 8);
+            byte[] bytes = new byte[(int) (page / 8 - from + 1)];
+            for (int i = 0; i < bytes.length * 8; i++) {
+                if (free.get((int) from * 8 + i)) bytes[i / 8] |= 1 << (i % 8);
+            }
+            out.seek(from);
+            out.write(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
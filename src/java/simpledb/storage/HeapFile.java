@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.util.HeapFileIterator;
@@ -17,6 +18,9 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Which pages have empty slots is kept in a {@link FreeSpaceMap}, so inserts
+ * do not have to visit the full pages.
  * 
  * @see HeapPage#HeapPage
  * @author Sam Madden
@@ -25,7 +29,10 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc tupleDesc;
-    private RandomAccessFile randomAccessFile;
+    private final PagedFile pagedFile;
+    private final FreeSpaceMap freeSpace;
+    // where the last insert found room; inserts look there first
+    private volatile int insertHint;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -38,11 +45,18 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
-        try {
-            this.randomAccessFile = new RandomAccessFile(f,"rw");
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
+        this.pagedFile = new PagedFile(f);
+        this.freeSpace = new FreeSpaceMap(f, numPages());
+    }
+
+    /**
+     * Read pages through a memory mapping of the file rather than with a
+     * system call per page.
+     *
+     * @see PagedFile
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        pagedFile.setMemoryMapped(memoryMapped);
     }
 
     /**
@@ -87,8 +101,7 @@ public class HeapFile implements DbFile {
         int pno = pid.getPageNumber();
         byte[] pageData = new byte[BufferPool.getPageSize()];
         try {
-            randomAccessFile.seek(pno*BufferPool.getPageSize());
-            randomAccessFile.read(pageData,0,pageData.length);
+            pagedFile.read((long) pno * BufferPool.getPageSize(), pageData);
             HeapPage heapPage = new HeapPage((HeapPageId) pid,pageData);
             return heapPage;
         } catch (IOException e) {
@@ -101,8 +114,8 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        randomAccessFile.seek(BufferPool.getPageSize()*page.getId().getPageNumber());
-        randomAccessFile.write( page.getPageData());
+        pagedFile.write((long) BufferPool.getPageSize() * page.getId().getPageNumber(), page.getPageData());
+        freeSpace.setFree(page.getId().getPageNumber(), ((HeapPage) page).getNumEmptySlots() > 0);
     }
 
     /**
@@ -118,23 +131,31 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         List<Page> list = new ArrayList<>();
-        for (int i = 0;i<numPages();i++){
+        // only visit the pages the free space map says have room
+        for (int i = freeSpace.nextFree(insertHint, numPages()); i >= 0; i = freeSpace.nextFree(i, numPages())) {
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(),i),Permissions.READ_WRITE);
             if (page != null && page.getNumEmptySlots() > 0){
                 page.insertTuple(t);
                 //page.markDirty(true,tid);
+                if (page.getNumEmptySlots() == 0) freeSpace.setFree(i, false);
+                insertHint = i;
                 list.add(page);
                 return list;
             }
+            freeSpace.setFree(i, false);
         }
         //no empty slot
-        HeapPageId heapPageId = new HeapPageId(getId(), numPages());
-        HeapPage page = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
-        //todo 将page弄进缓冲池
-        writePage(page);
-        page = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
+        HeapPageId heapPageId;
+        synchronized (this) {
+            heapPageId = new HeapPageId(getId(), numPages());
+            HeapPage page = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
+            //todo 将page弄进缓冲池
+            writePage(page);
+        }
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
         page.insertTuple(t);
         page.markDirty(true,tid);
+        insertHint = heapPageId.getPageNumber();
         list.add(page);
         return list;
         // not necessary for lab1
@@ -150,6 +171,7 @@ public class HeapFile implements DbFile {
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,pageId,Permissions.READ_WRITE);
         if (page != null && page.isSlotUsed(recordId.getTupleNumber())) {
             page.deleteTuple(t);
+            freeSpace.setFree(pageId.getPageNumber(), true);
             list.add(page);
             //page.markDirty(true,tid);
         }
@@ -170,5 +192,14 @@ public class HeapFile implements DbFile {
         return null;
     }
 
+    /**
+     * Returns an iterator over the tuples of this file that satisfy a
+     * predicate. The predicate is evaluated on the pages' bytes, so tuples
+     * that fail it are never decoded.
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate predicate) {
+        return new HeapFileIterator(tid, this.getId(), numPages(), predicate);
+    }
+
 }
 
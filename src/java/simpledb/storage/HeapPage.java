@@ -4,12 +4,24 @@ import simpledb.common.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import simpledb.execution.Predicate;
+import simpledb.execution.TupleBatch;
+import simpledb.util.SlotBitmap;
+
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.io.*;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the page's bytes as they are on disk and decodes a tuple
+ * only when an iterator reaches it, so tuples a predicate rejects are never
+ * materialized: the predicate is evaluated on the column in place (see
+ * {@link #iterator(Predicate)}). Decoded tuples are kept for later scans of
+ * the page. Inserts and deletes update the bytes directly.
  *
  * @see HeapFile
  * @see BufferPool
@@ -19,13 +31,20 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
+    final byte[] data;
+    final ByteBuffer buf;
+    final int headerSize;
     final int numSlots;
+    // offset of each field within a tuple
+    final int[] fieldOffsets;
+    // tuples decoded so far, by slot; scans may fill it concurrently
+    final AtomicReferenceArray<Tuple> decoded;
 
     private TransactionId tid;
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
+    // oldData is data itself until the next change, which copies it first
+    private boolean beforeImageShared;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -39,6 +58,8 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page works on its own copy of data, so callers may reuse the array.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -47,22 +68,14 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.headerSize = getHeaderSize();
+        this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+        this.buf = ByteBuffer.wrap(this.data);
+
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+        decoded = new AtomicReferenceArray<>(numSlots);
 
         setBeforeImage();
     }
@@ -88,12 +101,12 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            // copied under the lock: once a change has started, data is no
+            // longer the before image
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                return new HeapPage(pid,oldData);
             }
-            return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -105,7 +118,19 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = data;
+        beforeImageShared = true;
+        }
+    }
+
+    /** Must be called before every change to data. */
+    private void beforeWrite() {
+        if (beforeImageShared) {
+            synchronized(oldDataLock)
+            {
+            oldData = data.clone();
+            beforeImageShared = false;
+            }
         }
     }
 
@@ -118,40 +143,81 @@ public class HeapPage implements Page {
     //throw new UnsupportedOperationException("implement this");
     }
 
+    /** The offset in the page of a slot's tuple. */
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * The tuple in a used slot, decoded on first use.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple getTuple(int slotId) {
+        Tuple t = decoded.get(slotId);
+        if (t == null) {
+            t = readTuple(slotId);
+            decoded.set(slotId, t);
         }
+        return t;
+    }
 
-        // read fields in the tuple
+    private Tuple readTuple(int slotId) {
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            t.setField(j, td.getFieldType(j).parse(buf, offset + fieldOffsets[j]));
         }
-
         return t;
     }
 
+    /**
+     * Evaluate a predicate on the tuple in a used slot. Int columns are
+     * compared in place, without creating a Tuple or a Field.
+     */
+    boolean matches(int slotId, Predicate p) {
+        int offset = slotOffset(slotId) + fieldOffsets[p.getField()];
+        Field operand = p.getOperand();
+        if (operand instanceof IntField)
+            return IntField.compare(buf.getInt(offset), p.getOp(), ((IntField) operand).getValue());
+        return td.getFieldType(p.getField()).parse(buf, offset).compare(p.getOp(), operand);
+    }
+
+    /**
+     * Append the tuples in used slots, from a given slot on, that satisfy a
+     * predicate to a batch until it is full. The predicate is evaluated in
+     * place as by {@link #iterator(Predicate)}, and int columns are copied
+     * from the page bytes into the batch's arrays without creating Fields.
+     *
+     * @param predicate the predicate, or null to append all tuples
+     * @return the slot to continue from, or -1 if the page has no more tuples
+     */
+    public int readInto(int slot, TupleBatch batch, Predicate predicate) {
+        int row = batch.size();
+        int recordSize = td.getSize();
+        slot = SlotBitmap.nextUsed(data, 0, numSlots, slot);
+        if (slot < 0) return -1;
+        int rows = 0;
+        // find the slots first, then copy one column at a time
+        int[] slots = new int[Math.min(batch.capacity() - row, numSlots)];
+        while (slot >= 0 && rows < slots.length) {
+            if (predicate == null || matches(slot, predicate)) slots[rows++] = slot;
+            slot = SlotBitmap.nextUsed(data, 0, numSlots, slot + 1);
+        }
+        for (int j = 0; j < td.numFields(); j++) {
+            int fieldOffset = headerSize + fieldOffsets[j];
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                int[] column = batch.intColumn(j);
+                for (int i = 0; i < rows; i++) column[row + i] = buf.getInt(fieldOffset + slots[i] * recordSize);
+            } else {
+                Field[] column = batch.fieldColumn(j);
+                for (int i = 0; i < rows; i++)
+                    column[row + i] = td.getFieldType(j).parse(buf, fieldOffset + slots[i] * recordSize);
+            }
+        }
+        batch.setSize(row + rows);
+        return slot;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -164,64 +230,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -252,8 +261,12 @@ public class HeapPage implements Page {
         int tupleNumber = t.getRecordId().getTupleNumber();
         if (!pageId.equals(this.pid))throw new DbException("tuple is not on this page");
         if (!isSlotUsed(tupleNumber))throw new DbException("slot is already empty");
+        beforeWrite();
         markSlotUsed(tupleNumber,false);
-        this.tuples[tupleNumber] = null;
+        // empty slots are zero on disk
+        int offset = slotOffset(tupleNumber);
+        Arrays.fill(data, offset, offset + td.getSize(), (byte) 0);
+        decoded.set(tupleNumber, null);
     }
 
     /**
@@ -267,16 +280,15 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         if (!t.getTupleDesc().equals(this.td))throw new DbException("tupledesc is mismatch");
-        for (int i = 0;i<getNumTuples();i++){
-            if (!isSlotUsed(i)){
-                tuples[i] = t;
-                markSlotUsed(i,true);
-                t.setRecordId(new RecordId(this.pid,i));
-                //testIt(this);
-                return;
-            }
-        }
-        throw new DbException("the page is full");
+        int i = SlotBitmap.nextEmpty(data, 0, numSlots, 0);
+        if (i < 0) throw new DbException("the page is full");
+        beforeWrite();
+        int offset = slotOffset(i);
+        for (int j = 0; j < td.numFields(); j++)
+            t.getField(j).serialize(buf, offset + fieldOffsets[j]);
+        markSlotUsed(i,true);
+        decoded.set(i, null);
+        t.setRecordId(new RecordId(this.pid,i));
     }
 
 //    private void testIt(HeapPage heapPage) {
@@ -315,11 +327,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int emptySlots = 0;
-        for (int i = 0; i < getNumTuples(); i++) {
-            if (!isSlotUsed(i))emptySlots++;
-        }
-        return emptySlots;
+        return numSlots - SlotBitmap.countUsed(data, 0, numSlots);
     }
 
     /**
@@ -329,7 +337,7 @@ public class HeapPage implements Page {
         // some code goes here
         int byteIdx = i/8;
         int posIdx = i%8;
-        return ((1<<posIdx) & header[byteIdx]) != 0;
+        return ((1<<posIdx) & data[byteIdx]) != 0;
     }
 
     /**
@@ -340,7 +348,7 @@ public class HeapPage implements Page {
         // not necessary for lab1
         int byteIdx = i/8;
         int posIdx = i%8;
-        this.header[byteIdx] = value? (byte) (header[byteIdx] | 1<<posIdx) : (byte) (header[byteIdx] & ~(1<<posIdx));
+        this.data[byteIdx] = value? (byte) (data[byteIdx] | 1<<posIdx) : (byte) (data[byteIdx] & ~(1<<posIdx));
     }
 
     /**
@@ -350,24 +358,38 @@ public class HeapPage implements Page {
     public Iterator<Tuple> iterator() {
         // some code goes here
 //        System.out.println("return a iterator");
+        return iterator(null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy a
+     *         predicate, or over all of them if the predicate is null. Only
+     *         the tuples returned are decoded.
+     */
+    public Iterator<Tuple> iterator(Predicate predicate) {
         return new Iterator<Tuple>() {
-            int cur = 0;
+            int cur = advance(0);
+
+            private int advance(int slot) {
+                slot = SlotBitmap.nextUsed(data, 0, numSlots, slot);
+                while (slot >= 0 && predicate != null && !matches(slot, predicate))
+                    slot = SlotBitmap.nextUsed(data, 0, numSlots, slot + 1);
+                return slot < 0 ? numSlots : slot;
+            }
+
             @Override
             public boolean hasNext() {
-                while (cur<numSlots && tuples[cur]==null)cur++;
-                return cur < numSlots && tuples[cur]!=null;
+                return cur < numSlots;
             }
 
             @Override
             public Tuple next() {
-                Tuple tuple = tuples[cur];
-                do {
-                    cur++;
-                }while (cur<numSlots&&tuples[cur]==null);
+                if (cur >= numSlots) throw new NoSuchElementException();
+                Tuple tuple = getTuple(cur);
+                cur = advance(cur + 1);
                 return tuple;
             }
         };
     }
 
 }
-
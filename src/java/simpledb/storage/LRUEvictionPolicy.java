@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+import simpledb.util.ShardedLRUCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Approximate LRU replacement backed by a {@link ShardedLRUCache}, so hits on
+ * pages in different shards do not contend.
+ * <p>
+ * Pages that cannot be evicted are popped and re-inserted at the head of
+ * their shard, so choosing a victim can walk every tracked page when most of
+ * the pool is dirty. {@link ClockEvictionPolicy} does not have that problem.
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+
+    private final ShardedLRUCache<PageId, PageId> order;
+
+    public LRUEvictionPolicy(int capacity) {
+        // capacity 0: the buffer pool decides when to evict, not the cache
+        this.order = new ShardedLRUCache<>(0);
+    }
+
+    public void recordInsert(PageId pid) {
+        order.put(pid, pid);
+    }
+
+    public void recordAccess(PageId pid) {
+        order.get(pid);
+    }
+
+    public void recordRemove(PageId pid) {
+        order.remove(pid);
+    }
+
+    public synchronized PageId evict(Predicate<PageId> canEvict) {
+        List<PageId> skipped = new ArrayList<>();
+        PageId victim = null;
+        for (int i = order.getSize(); i > 0 && victim == null; i--) {
+            PageId pid = order.evictOldest();
+            if (pid == null) break;
+            if (canEvict.test(pid)) victim = pid;
+            else skipped.add(pid);
+        }
+        for (PageId pid : skipped) order.put(pid, pid);
+        return victim;
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The append buffer of the log.
+ * <p>
+ * Records are serialized into a reusable direct ByteBuffer and only written
+ * to the log file, with positional FileChannel writes, when the buffer fills
+ * up or someone needs the bytes on disk. A burst of small records therefore
+ * costs one write system call instead of one per field.
+ * <p>
+ * A record must be serialized while holding {@link #lock()}, so that a
+ * {@link #drain()} from the log flusher never writes half a record.
+ */
+class LogBuffer {
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private ByteBuffer buf = ByteBuffer.allocateDirect(DEFAULT_CAPACITY);
+    private long fileEnd; // file offset the first buffered byte goes to
+
+    /**
+     * @param channel the log file
+     * @param fileEnd the offset at which appends start
+     */
+    LogBuffer(FileChannel channel, long fileEnd) {
+        this.channel = channel;
+        this.fileEnd = fileEnd;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    /** The offset in the file of the next byte appended. */
+    long position() {
+        return fileEnd + buf.position();
+    }
+
+    void putInt(int v) throws IOException {
+        ensure(Integer.BYTES).putInt(v);
+    }
+
+    void putLong(long v) throws IOException {
+        ensure(Long.BYTES).putLong(v);
+    }
+
+    void put(byte[] bytes) throws IOException {
+        ensure(bytes.length).put(bytes);
+    }
+
+    /** A length-prefixed UTF-8 string. */
+    void putString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putInt(bytes.length);
+        put(bytes);
+    }
+
+    private ByteBuffer ensure(int bytes) throws IOException {
+        if (buf.remaining() < bytes) {
+            drain();
+            if (buf.capacity() < bytes) buf = ByteBuffer.allocateDirect(Integer.highestOneBit(bytes) << 1);
+        }
+        return buf;
+    }
+
+    /** Write everything buffered to the file. */
+    void drain() throws IOException {
+        lock.lock();
+        try {
+            buf.flip();
+            while (buf.hasRemaining()) fileEnd += channel.write(buf, fileEnd);
+            buf.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
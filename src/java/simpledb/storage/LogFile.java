@@ -2,12 +2,23 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.index.BTreeFile;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -55,28 +66,62 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+CHECKPOINT and COMPENSATION
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  The page and page id
+classes are identified by the numeric tags in {@link #CLASS_TAGS}; any
+other class is written as tag 0 followed by its name.
+
+<li>DELTA RECORDS replace UPDATE records once the log holds a page's
+previous image: the first change to a page after a checkpoint is logged
+as a full UPDATE record, later ones only as the page class and id
+followed by a {@link PageDelta}, the byte ranges that changed with their
+old and new contents.  Redo from a checkpoint therefore always starts
+from a full image.
+
+<li>COMPENSATION RECORDS (CLRs) are written when the changes of a
+transaction to a page are undone, by a rollback or by recovery: the page
+class and id followed by a {@link PageDelta} from the page with the
+changes to the page without them.  They are redone like DELTA records
+but never undone themselves, and undo skips the changes to the page
+that came before one, so a rollback cut short by a crash does not undo
+a page twice.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the offset redo has to start from.  The format of the record is an
+integer count of the number of transactions, as well as a long integer
+transaction id and a long integer first record offset for each active
+transaction, and then the long integer redo offset.  Checkpoints are
+fuzzy: they do not write any pages, so the redo offset is the first
+record of the oldest change the buffer pool has logged but not written
+yet, or the checkpoint itself if every logged change is on disk.
 
 </ul>
+
+<p> Records are serialized into a {@link LogBuffer} and reach the file in
+large positional writes, when the buffer fills up, when the log is forced,
+or before the log file is read.  Forcing the log is left to a
+{@link LogFlusher}: {@link #force()} and
+{@link #logCommit(TransactionId)} block until a background thread has
+forced the log past their records, and one force serves every caller
+waiting at that point (group commit).  Positions in the log are tracked
+as LSNs, which are file offsets that keep growing across truncations.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private volatile RandomAccessFile raf; // for reading; appends go through buffer
+    private volatile LogBuffer buffer;
+    // checksum of the last image logged for each page since the last
+    // checkpoint; a change from that image can be logged as a delta
+    private final Map<PageId, Long> loggedImages = new HashMap<>();
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,17 +129,47 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int COMPENSATION_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /**
+     * Tags for the page and page id classes written in update records,
+     * indexed by tag. Tag 0 means the class name follows. New classes must
+     * be added at the end, or existing logs will no longer read.
+     */
+    static final String[] CLASS_TAGS = {
+            null,
+            "simpledb.storage.HeapPage",
+            "simpledb.storage.HeapPageId",
+            "simpledb.index.BTreeLeafPage",
+            "simpledb.index.BTreeInternalPage",
+            "simpledb.index.BTreeHeaderPage",
+            "simpledb.index.BTreeRootPtrPage",
+            "simpledb.index.BTreePageId",
+    };
+    private static final Map<String, Integer> TAG_OF_CLASS = new HashMap<>();
+    static {
+        for (int i = 1; i < CLASS_TAGS.length; i++) TAG_OF_CLASS.put(CLASS_TAGS[i], i);
+    }
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    // LSN of the end of the log: lsnBase + currentOffset, written under this
+    private long lsnBase = 0;
+    private volatile long appendedLsn = 0;
+
+    private final LogFlusher flusher = new LogFlusher(this::sync);
+
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -109,6 +184,7 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        buffer = new LogBuffer(raf.getChannel(), raf.length());
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -133,13 +209,59 @@ public class LogFile {
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            buffer = new LogBuffer(raf.getChannel(), raf.length());
+            currentOffset = raf.length();
+            appendedLsn = lsnBase + currentOffset;
         }
     }
 
+    // start serializing a record into the buffer
+    private void beginRecord() throws IOException {
+        buffer.lock();
+    }
+
+    // we've just written a record: it ends at the buffer's position
+    private void endRecord() {
+        currentOffset = buffer.position();
+        appendedLsn = lsnBase + currentOffset;
+        buffer.unlock();
+    }
+
+    // write out whatever is buffered, before reading the log file
+    private void drain() throws IOException {
+        buffer.drain();
+    }
+
+    /** The LSN of the end of the log, where the next record will start. */
+    long endLsn() {
+        return appendedLsn;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * Set how long the log flusher waits for more transactions to commit
+     * before it forces the log. With 0, the default, it forces as soon as
+     * someone waits, and commits that arrive during a force share the next.
+     */
+    public void setGroupCommitWindow(long time, TimeUnit unit) {
+        flusher.setWindow(time, unit);
+    }
+
+    /**
+     * Set the number of threads {@link #recover()} replays the log with,
+     * by default one per processor.
+     */
+    public void setRecoveryThreads(int threads) {
+        this.recoveryThreads = threads;
+    }
+
+    /** The number of times the log has been forced to disk. */
+    public long getForceCount() {
+        return flusher.getSyncCount();
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -160,10 +282,11 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord();
+                buffer.putInt(ABORT_RECORD);
+                buffer.putLong(tid.getId());
+                buffer.putLong(currentOffset);
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -171,21 +294,26 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log has been forced past it.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord();
+            buffer.putInt(COMMIT_RECORD);
+            buffer.putLong(tid.getId());
+            buffer.putLong(currentOffset);
+            endRecord();
+            lsn = appendedLsn;
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        flusher.awaitDurable(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -193,13 +321,15 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the end of the record, which the log must be
+        durable up to before the after image is written
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -209,83 +339,395 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        Long logged = loggedImages.put(after.getId(), checksum(afterData));
+        PageDelta delta = null;
+        if (logged != null && logged == checksum(beforeData)) {
+            delta = PageDelta.diff(beforeData, afterData);
+            if (delta.size() >= beforeData.length + afterData.length) delta = null;
+        }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord();
+        if (delta != null) {
+            buffer.putInt(DELTA_RECORD);
+            buffer.putLong(tid.getId());
+            writePageRef(buffer, after.getClass(), after.getId());
+            delta.write(buffer);
+        } else {
+            buffer.putInt(UPDATE_RECORD);
+            buffer.putLong(tid.getId());
+            writePageData(buffer, before, beforeData);
+            writePageData(buffer, after, afterData);
+        }
+        buffer.putLong(currentOffset);
+        endRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return appendedLsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    void writePageData(LogBuffer out, Page p) throws IOException{
+        writePageData(out, p, p.getPageData());
+    }
 
+    private void writePageData(LogBuffer out, Page p, byte[] pageData) throws IOException {
         //page data is:
-        // page class name
-        // id class name
+        // page class tag
+        // id class tag
         // id class bytes
         // id class data
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        writePageRef(out, p.getClass(), p.getId());
+        out.putInt(pageData.length);
+        out.put(pageData);
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
-        raf.writeInt(pageInfo.length);
+    private static void writePageRef(LogBuffer out, Class<?> pageClass, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        writeClass(out, pageClass);
+        writeClass(out, pid.getClass());
+        out.putInt(pageInfo.length);
         for (int j : pageInfo) {
-            raf.writeInt(j);
+            out.putInt(j);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    // two independent 32 bit hashes, so that different images of a page
+    // practically never collide
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return ((long) Arrays.hashCode(data) << 32) | crc.getValue();
+    }
+
+    private static void writeClass(LogBuffer out, Class<?> c) throws IOException {
+        Integer tag = TAG_OF_CLASS.get(c.getName());
+        out.putInt(tag == null ? 0 : tag);
+        if (tag == null) out.putString(c.getName());
+    }
+
+    private static String readClassName(DataInput in) throws IOException {
+        int tag = in.readInt();
+        if (tag > 0 && tag < CLASS_TAGS.length) return CLASS_TAGS[tag];
+        if (tag != 0) throw new IOException("bad class tag " + tag + " in log");
+        byte[] name = new byte[in.readInt()];
+        in.readFully(name);
+        return new String(name, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    /** The page class and page id written ahead of a page image or delta. */
+    private static class PageRef {
+        final PageClass pageClass;
+        final PageId pid;
+
+        PageRef(PageClass pageClass, PageId pid) {
+            this.pageClass = pageClass;
+            this.pid = pid;
+        }
+
+        Page newPage(byte[] pageData) throws IOException {
+            return pageClass.newPage(pid, pageData);
+        }
+    }
+
+    /**
+     * A page class named in the log, with the constructor its images are
+     * turned back into pages with. Looked up once per class and cached in
+     * {@link #PAGE_CLASSES}, so reading a record costs no reflection lookups.
+     */
+    private static final class PageClass {
+        final Class<?> type;
+        private final Constructor<?> constructor;
+        // B+ tree leaf and internal pages also take the key field of their file
+        private final boolean keyed;
+
+        private PageClass(Class<?> type, Constructor<?> constructor) {
+            this.type = type;
+            this.constructor = constructor;
+            this.keyed = constructor.getParameterCount() == 3;
+        }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        static PageClass forName(String name) throws IOException {
+            PageClass pageClass = PAGE_CLASSES.get(name);
+            if (pageClass != null) return pageClass;
+            try {
+                Class<?> type = Class.forName(name);
+                for (Constructor<?> c : type.getDeclaredConstructors()) {
+                    Class<?>[] params = c.getParameterTypes();
+                    if (params.length >= 2 && PageId.class.isAssignableFrom(params[0]) && params[1] == byte[].class
+                            && (params.length == 2 || (params.length == 3 && params[2] == int.class))) {
+                        pageClass = new PageClass(type, c);
+                        PAGE_CLASSES.put(name, pageClass);
+                        return pageClass;
+                    }
+                }
+            } catch (ClassNotFoundException e) {
+                throw new IOException("unknown page class " + name + " in log", e);
+            }
+            throw new IOException("page class " + name + " has no (id, data) constructor");
+        }
 
+        Page newPage(PageId pid, byte[] pageData) throws IOException {
+            try {
+                if (!keyed) return (Page) constructor.newInstance(pid, pageData);
+                int keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+                return (Page) constructor.newInstance(pid, pageData, keyField);
+            } catch (InvocationTargetException | IllegalAccessException | InstantiationException e) {
+                throw new IOException("could not make a " + type.getName() + " from the log", e);
+            }
+        }
+    }
+
+    private static final Map<String, PageClass> PAGE_CLASSES = new ConcurrentHashMap<>();
+
+    /** The constructors of the page id classes named in the log, from their int fields. */
+    private static final Map<String, Constructor<?>> ID_CONSTRUCTORS = new ConcurrentHashMap<>();
+
+    private static Constructor<?> idConstructor(String name, int numArgs) throws IOException {
+        Constructor<?> constructor = ID_CONSTRUCTORS.get(name);
+        if (constructor != null && constructor.getParameterCount() == numArgs) return constructor;
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+            for (Constructor<?> c : Class.forName(name).getDeclaredConstructors()) {
+                if (c.getParameterCount() == numArgs) {
+                    ID_CONSTRUCTORS.put(name, c);
+                    return c;
+                }
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unknown page id class " + name + " in log", e);
+        }
+        throw new IOException("page id class " + name + " has no constructor of " + numArgs + " ints");
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    private static PageRef readPageRef(DataInput in) throws IOException {
+        PageClass pageClass = PageClass.forName(readClassName(in));
+        String idClassName = readClassName(in);
+        int numIdArgs = in.readInt();
+        Object[] idArgs = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = in.readInt();
+        }
+        try {
+            return new PageRef(pageClass, (PageId) idConstructor(idClassName, numIdArgs).newInstance(idArgs));
+        } catch (InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IOException("could not make a " + idClassName + " from the log", e);
+        }
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    private static byte[] readImage(DataInput in) throws IOException {
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return pageData;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    Page readPageData(RandomAccessFile raf) throws IOException {
+        PageRef ref = readPageRef(raf);
+        //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        return ref.newPage(readImage(raf));
+    }
+
+    /** An UPDATE, DELTA or COMPENSATION record, as read back from the log. */
+    private static class PageChange {
+        final int type;
+        final long tid;
+        final PageRef ref;
+        private final byte[] before; // of an UPDATE record
+        private final byte[] after;  // of an UPDATE record
+        private PageDelta delta;
+
+        PageChange(int type, long tid, PageRef ref, byte[] before, byte[] after, PageDelta delta) {
+            this.type = type;
+            this.tid = tid;
+            this.ref = ref;
+            this.before = before;
+            this.after = after;
+            this.delta = delta;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        /**
+         * Apply the change to an image of the page, which may be null for a
+         * full image, and return the result. Records only hold full images
+         * or the new contents of the ranges they change, so redoing every
+         * record from some point on, in order, leaves the page as the last
+         * one did, whatever the page looked like before.
+         */
+        byte[] redo(byte[] image) {
+            if (after != null) return after.clone();
+            delta.redo(image);
+            return image;
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+        /** Take the change back out of an image of the page, in place. */
+        void undo(byte[] image) {
+            if (delta == null) delta = PageDelta.diff(before, after);
+            delta.undo(image);
+        }
+    }
+
+    private static boolean isPageChange(int type) {
+        return type == UPDATE_RECORD || type == DELTA_RECORD || type == COMPENSATION_RECORD;
+    }
+
+    /** Read the rest of a page change record, after its type and transaction id. */
+    private static PageChange readPageChange(DataInput in, int type, long tid) throws IOException {
+        PageRef ref = readPageRef(in);
+        if (type == UPDATE_RECORD) {
+            byte[] before = readImage(in);
+            readPageRef(in);
+            return new PageChange(type, tid, ref, before, readImage(in), null);
         }
-        return newPage;
+        return new PageChange(type, tid, ref, null, null, PageDelta.read(in));
+    }
 
+    /**
+     * Buffered reads of the log file from the given offset on, for scans
+     * that read many records: reading through the RandomAccessFile costs a
+     * system call for every field. The file is drained first.
+     */
+    private LogInput readFrom(long offset) throws IOException {
+        drain();
+        return new LogInput(raf.getChannel(), offset);
+    }
+
+    /** A buffered input over the log file that knows its offset in the file. */
+    private static final class LogInput extends DataInputStream {
+        LogInput(java.nio.channels.FileChannel channel, long offset) throws IOException {
+            super(new Counting(new BufferedInputStream(Channels.newInputStream(channel.position(offset)), 1 << 16),
+                    offset));
+        }
+
+        long position() {
+            return ((Counting) in).position;
+        }
+
+        private static final class Counting extends FilterInputStream {
+            long position;
+
+            Counting(InputStream in, long position) {
+                super(in);
+                this.position = position;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) position++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) position += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                position += skipped;
+                return skipped;
+            }
+        }
+    }
+
+    /**
+     * Add a change of a transaction to the changes it has to undo, by page.
+     * A compensation record means the changes to its page before it are
+     * undone already.
+     */
+    private static void addUndo(Map<PageId, List<PageChange>> undo, PageChange change) {
+        if (change.type == COMPENSATION_RECORD) undo.remove(change.ref.pid);
+        else undo.computeIfAbsent(change.ref.pid, k -> new ArrayList<>()).add(change);
+    }
+
+    /**
+     * Undo the given changes of a transaction to a page, newest first, on an
+     * image of the page that holds them, and log a compensation record.
+     */
+    private void compensate(long tid, List<PageChange> changes, byte[] image) throws IOException {
+        byte[] done = image.clone();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            changes.get(i).undo(image);
+        }
+        PageRef ref = changes.get(0).ref;
+        preAppend();
+        beginRecord();
+        buffer.putInt(COMPENSATION_RECORD);
+        buffer.putLong(tid);
+        writePageRef(buffer, ref.pageClass.type, ref.pid);
+        PageDelta.diff(done, image).write(buffer);
+        buffer.putLong(currentOffset);
+        endRecord();
+        loggedImages.put(ref.pid, checksum(image));
+    }
+
+    /** The redo worker a page belongs to. */
+    private static int partition(PageId pid, int partitions) {
+        return Math.floorMod(pid.hashCode(), partitions);
+    }
+
+    /**
+     * The pages of one redo worker: their images, and the changes waiting to
+     * be applied to them. Changes are handed to the workers in batches, and
+     * the batches of a partition are chained so that they run one at a time,
+     * in log order.
+     */
+    private static final class RedoPartition {
+        private static final int BATCH_SIZE = 256;
+
+        final Map<PageId, byte[]> images = new HashMap<>();
+        private final ExecutorService workers;
+        private List<PageChange> batch = new ArrayList<>(BATCH_SIZE);
+        private CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+
+        RedoPartition(ExecutorService workers) {
+            this.workers = workers;
+        }
+
+        void add(PageChange change) {
+            batch.add(change);
+            if (batch.size() == BATCH_SIZE) flush();
+        }
+
+        void flush() {
+            if (batch.isEmpty()) return;
+            final List<PageChange> changes = batch;
+            batch = new ArrayList<>(BATCH_SIZE);
+            done = done.thenRunAsync(() -> {
+                for (PageChange change : changes) redo(change);
+            }, workers);
+        }
+
+        private void redo(PageChange change) {
+            PageId pid = change.ref.pid;
+            byte[] image = images.get(pid);
+            if (image == null && change.type != UPDATE_RECORD) image = diskImage(pid);
+            images.put(pid, change.redo(image));
+        }
+
+        /** Wait for every change handed to this partition to be applied. */
+        void await() throws IOException {
+            try {
+                done.join();
+            } catch (CompletionException e) {
+                throw new IOException("redo failed", e.getCause());
+            }
+        }
+    }
+
+    /** The image of a page on disk, or an empty page if the file does not reach it. */
+    private static byte[] diskImage(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            return file.readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            return new byte[BufferPool.getPageSize()];
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,49 +742,61 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        beginRecord();
+        buffer.putInt(BEGIN_RECORD);
+        buffer.putLong(tid.getId());
+        buffer.putLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /**
+     * Write a checkpoint record. No pages are written: the record says where
+     * redo has to start for the changes the buffer pool has not written yet.
+     */
     public void logCheckpoint() throws IOException {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                // the next change to each page is logged with a full image
+                loggedImages.clear();
+                beginRecord();
+                startCpOffset = buffer.position();
+                buffer.putInt(CHECKPOINT_RECORD);
+                buffer.putLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                buffer.putInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    buffer.putLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    buffer.putLong(tidToFirstLogRecord.get(key));
                 }
+                long redoOffset = startCpOffset;
+                long recoveryLsn = Database.getBufferPool().minRecoveryLsn();
+                if (recoveryLsn >= 0) {
+                    // recovery LSNs are file offsets plus lsnBase; one taken
+                    // before the first record was appended precedes the header
+                    redoOffset = Math.max(LONG_SIZE, Math.min(redoOffset, recoveryLsn - lsnBase));
+                }
+                buffer.putLong(redoOffset);
+                buffer.putLong(currentOffset);
+                endRecord();
 
                 //once the CP is written, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                drain();
+                ByteBuffer cpLoc = ByteBuffer.allocate(LONG_SIZE).putLong(0, startCpOffset);
+                buffer.channel().write(cpLoc, 0);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -354,6 +808,7 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        drain();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -379,13 +834,17 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
+            long redoOffset = raf.readLong();
+            if (redoOffset < minLogRecord) {
+                minLogRecord = redoOffset;
+            }
         }
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        LogBuffer out = new LogBuffer(logNew.getChannel(), 0);
+        out.putLong((cpLoc - minLogRecord) + LONG_SIZE);
 
         raf.seek(minLogRecord);
 
@@ -394,38 +853,46 @@ public class LogFile {
             try {
                 int type = raf.readInt();
                 long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+                long newStart = out.position();
 
                 Debug.log("NEW START = " + newStart);
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+                out.putInt(type);
+                out.putLong(record_tid);
 
                 switch (type) {
                 case UPDATE_RECORD:
                     Page before = readPageData(raf);
                     Page after = readPageData(raf);
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                    writePageData(out, before);
+                    writePageData(out, after);
+                    break;
+                case DELTA_RECORD:
+                case COMPENSATION_RECORD:
+                    PageRef ref = readPageRef(raf);
+                    writePageRef(out, ref.pageClass.type, ref.pid);
+                    PageDelta.read(raf).write(out);
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
+                    out.putInt(numXactions);
                     while (numXactions-- > 0) {
                         long xid = raf.readLong();
                         long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        out.putLong(xid);
+                        out.putLong((xoffset - minLogRecord) + LONG_SIZE);
                     }
+                    out.putLong((raf.readLong() - minLogRecord) + LONG_SIZE);
                     break;
                 case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                    // only transactions that are still running
+                    tidToFirstLogRecord.computeIfPresent(record_tid, (k, v) -> newStart);
                     break;
                 }
 
                 //all xactions finish with a pointer
-                logNew.writeLong(newStart);
+                out.putLong(newStart);
                 raf.readLong();
 
             } catch (EOFException e) {
@@ -435,14 +902,24 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
-        raf.close();
+        // the truncated log is durable before it replaces the old one, and
+        // the old file stays open until then for a force in progress
+        out.drain();
+        logNew.getChannel().force(true);
+        logNew.close();
+        RandomAccessFile oldRaf = raf;
         logFile.delete();
         newFile.renameTo(logFile);
         raf = new RandomAccessFile(logFile, "rw");
         raf.seek(raf.length());
+        buffer = new LogBuffer(raf.getChannel(), raf.length());
         newFile.delete();
+        oldRaf.close();
 
+        long lsn = appendedLsn;
         currentOffset = raf.getFilePointer();
+        lsnBase = lsn - currentOffset;
+        flusher.markDurable(lsn);
         //print();
     }
 
@@ -460,52 +937,69 @@ public class LogFile {
                 preAppend();
                 // some code goes here
                 final Long firstRecordPos = this.tidToFirstLogRecord.get(tid.getId());
-                this.raf.seek(firstRecordPos);
-                final HashSet<PageId> set = new HashSet<>();
+                final BufferPool pool = Database.getBufferPool();
+                final LogInput in = readFrom(firstRecordPos);
+                // the transaction's changes to each page, oldest first
+                final Map<PageId, List<PageChange>> changes = new LinkedHashMap<>();
                 while (true) {
                     try {
-                        final int type = raf.readInt();
-                        final long transactionId = raf.readLong();
-                        switch (type) {
-                            case UPDATE_RECORD: {
-                                final Page beginPage = readPageData(this.raf);
-                                readPageData(this.raf);
-                                final PageId pageId = beginPage.getId();
-                                if (transactionId == tid.getId() && !set.contains(pageId)) {
-                                    set.add(pageId);
-                                    // Discard, rewrite page
-                                    Database.getBufferPool().discardPage(beginPage.getId());
-                                    Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(beginPage);
-                                }
-                                break;
-                            }
-                            case CHECKPOINT_RECORD: {
-                                skipCheckPointRecord();
-                                break;
-                            }
+                        final int type = in.readInt();
+                        final long transactionId = in.readLong();
+                        if (isPageChange(type)) {
+                            final PageChange change = readPageChange(in, type, transactionId);
+                            if (transactionId == tid.getId()) addUndo(changes, change);
+                        } else if (type == CHECKPOINT_RECORD) {
+                            skipCheckPointRecord(in);
                         }
-                        raf.readLong();
+                        in.readLong();
                     } catch (final EOFException e) {
                         break;
                     }
                 }
+
+                // every logged change was written to the page, so undoing them
+                // newest first from the page on disk gives its state before the
+                // transaction
+                final Map<PageRef, byte[]> restored = new LinkedHashMap<>();
+                for (final List<PageChange> pageChanges : changes.values()) {
+                    final PageRef ref = pageChanges.get(0).ref;
+                    // a change of the page that is logged but not on disk
+                    // yet has to be there first
+                    pool.writeLogged(ref.pid);
+                    pool.discardPage(ref.pid);
+                    final byte[] image = diskImage(ref.pid);
+                    compensate(tid.getId(), pageChanges, image);
+                    restored.put(ref, image);
+                }
+                // the compensation records go to disk before the pages (WAL)
+                force();
+                for (final Map.Entry<PageRef, byte[]> e : restored.entrySet()) {
+                    final PageRef ref = e.getKey();
+                    Database.getCatalog().getDatabaseFile(ref.pid.getTableId()).writePage(ref.newPage(e.getValue()));
+                }
             }
         }
     }
 
-    private void skipCheckPointRecord() throws IOException {
-        final int txnCnt = this.raf.readInt();
-        final int skip = txnCnt * 2 * 8;
-        this.raf.skipBytes(skip);
+    private static void skipCheckPointRecord(DataInput in) throws IOException {
+        final int txnCnt = in.readInt();
+        in.readFully(new byte[txnCnt * 2 * 8 + 8]);
     }
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (Database.getBufferPool()) {
+                synchronized (this) {
+                    // with every page on disk, recovery starts at the checkpoint
+                    Database.getBufferPool().flushAllPages();
+                    logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                    drain();
+                    raf.close();
+                }
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -521,12 +1015,147 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                drain();
+                if (raf.length() < LONG_SIZE) {
+                    // nothing was ever logged
+                    recoveryUndecided = true;
+                    return;
+                }
+
+                // analysis: where redo starts, and where the oldest change
+                // of a transaction that may not have finished is
+                raf.seek(0);
+                final long cpOffset = raf.readLong();
+                long redoOffset = LONG_SIZE;
+                long scanOffset = LONG_SIZE;
+                if (cpOffset != NO_CHECKPOINT_ID) {
+                    raf.seek(cpOffset + INT_SIZE + LONG_SIZE);
+                    scanOffset = cpOffset;
+                    int numTransactions = raf.readInt();
+                    while (numTransactions-- > 0) {
+                        raf.readLong();
+                        scanOffset = Math.min(scanOffset, raf.readLong());
+                    }
+                    redoOffset = raf.readLong();
+                    scanOffset = Math.min(scanOffset, redoOffset);
+                }
+
+                // redo: repeat history from the redo offset on, including the
+                // changes of transactions that did not finish and
+                // compensation records, while collecting what those
+                // transactions have to undo. Records are read here, in
+                // order, and applied by the redo workers: the pages are
+                // split among them by id, so each page still sees its
+                // changes in log order
+                final int threads = Math.max(1, recoveryThreads);
+                final ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+                    Thread t = new Thread(r, "recovery");
+                    t.setDaemon(true);
+                    return t;
+                });
+                final RedoPartition[] partitions = new RedoPartition[threads];
+                for (int i = 0; i < threads; i++) partitions[i] = new RedoPartition(workers);
+                final Map<PageId, PageRef> refs = new LinkedHashMap<>();
+                final Map<Long, Map<PageId, List<PageChange>>> losers = new LinkedHashMap<>();
+                final LogInput in = readFrom(scanOffset);
+                long end = scanOffset;
+                try {
+                    while (true) {
+                        try {
+                            final long offset = in.position();
+                            final int type = in.readInt();
+                            final long tid = in.readLong();
+                            PageChange change = null;
+                            switch (type) {
+                            case BEGIN_RECORD:
+                                losers.put(tid, new LinkedHashMap<>());
+                                break;
+                            case COMMIT_RECORD:
+                            case ABORT_RECORD:
+                                losers.remove(tid);
+                                break;
+                            case CHECKPOINT_RECORD:
+                                int numTransactions = in.readInt();
+                                while (numTransactions-- > 0) {
+                                    losers.putIfAbsent(in.readLong(), new LinkedHashMap<>());
+                                    in.readLong();
+                                }
+                                in.readLong();
+                                break;
+                            case UPDATE_RECORD:
+                            case DELTA_RECORD:
+                            case COMPENSATION_RECORD:
+                                change = readPageChange(in, type, tid);
+                                break;
+                            default:
+                                throw new EOFException("bad record type " + type);
+                            }
+                            in.readLong();
+                            end = in.position();
+
+                            if (change == null) continue;
+                            final PageId pid = change.ref.pid;
+                            refs.putIfAbsent(pid, change.ref);
+                            if (offset >= redoOffset) partitions[partition(pid, threads)].add(change);
+                            addUndo(losers.computeIfAbsent(tid, k -> new LinkedHashMap<>()), change);
+                        } catch (final EOFException e) {
+                            // the end of the log, or a record a crash cut short
+                            break;
+                        }
+                    }
+                    for (RedoPartition partition : partitions) partition.flush();
+                    for (RedoPartition partition : partitions) partition.await();
+                } finally {
+                    workers.shutdown();
+                }
+                raf.setLength(end);
+                buffer = new LogBuffer(raf.getChannel(), end);
+                currentOffset = end;
+                appendedLsn = lsnBase + currentOffset;
+
+                // undo: take the changes of every transaction that did not
+                // finish back out of the pages, newest first, and abort it
+                for (final Map.Entry<Long, Map<PageId, List<PageChange>>> loser : losers.entrySet()) {
+                    for (final List<PageChange> pageChanges : loser.getValue().values()) {
+                        final PageId pid = pageChanges.get(0).ref.pid;
+                        final Map<PageId, byte[]> images = partitions[partition(pid, threads)].images;
+                        byte[] image = images.get(pid);
+                        if (image == null) image = diskImage(pid);
+                        compensate(loser.getKey(), pageChanges, image);
+                        images.put(pid, image);
+                    }
+                    preAppend();
+                    beginRecord();
+                    buffer.putInt(ABORT_RECORD);
+                    buffer.putLong(loser.getKey());
+                    buffer.putLong(currentOffset);
+                    endRecord();
+                }
+                tidToFirstLogRecord.clear();
+
+                // the log goes to disk before the pages it describes (WAL)
+                force();
+                final BufferPool pool = Database.getBufferPool();
+                final List<Page> pages = new ArrayList<>();
+                for (final RedoPartition partition : partitions) {
+                    for (final Map.Entry<PageId, byte[]> e : partition.images.entrySet()) {
+                        pool.discardPage(e.getKey());
+                        pages.add(refs.get(e.getKey()).newPage(e.getValue()));
+                    }
+                }
+                for (final Page page : pages) {
+                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                }
+
+                // with every page up to date, the next recovery starts here
+                logCheckpoint();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
+        drain();
         long curOffset = raf.getFilePointer();
 
         raf.seek(0);
@@ -566,6 +1195,7 @@ public class LogFile {
                         System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                         System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
+                    System.out.println(raf.getFilePointer() + ": REDO OFFSET: " + raf.readLong());
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                     break;
@@ -588,6 +1218,21 @@ public class LogFile {
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                    break;
+                case DELTA_RECORD:
+                case COMPENSATION_RECORD:
+                    System.out.println(cpType == DELTA_RECORD ? " (DELTA)" : " (COMPENSATION)");
+
+                    long refStart = raf.getFilePointer();
+                    PageRef ref = readPageRef(raf);
+                    long deltaStart = raf.getFilePointer();
+                    PageDelta delta = PageDelta.read(raf);
+
+                    System.out.println(refStart + ": table id " + ref.pid.getTableId() + ", page number " + ref.pid.getPageNumber());
+                    System.out.println(deltaStart + " TO " + raf.getFilePointer() + ": " + delta.numRanges() + " changed ranges");
+
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
                     break;
                 }
 
@@ -601,8 +1246,37 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Wait until everything logged so far is on disk. */
+    public void force() throws IOException {
+        flusher.awaitDurable(appendedLsn);
+    }
+
+    /** Wait until the log is on disk up to the given LSN. */
+    public void force(long lsn) throws IOException {
+        flusher.awaitDurable(lsn);
+    }
+
+    // run by the log flusher, without this object's lock: one write of
+    // everything buffered, then one force
+    private long sync() throws IOException {
+        while (true) {
+            LogBuffer b = buffer;
+            long lsn;
+            try {
+                b.lock();
+                try {
+                    lsn = appendedLsn;
+                    b.drain();
+                } finally {
+                    b.unlock();
+                }
+                b.channel().force(true);
+                return lsn;
+            } catch (ClosedChannelException e) {
+                // the log was truncated into a new file meanwhile: force that one
+                if (buffer == b) throw e;
+            }
+        }
     }
 
 }
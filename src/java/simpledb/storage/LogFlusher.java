@@ -0,0 +1,126 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Group commit for the {@link LogFile}.
+ * <p>
+ * Threads that need the log durable up to some LSN call
+ * {@link #awaitDurable(long)} and block. A single background thread forces the
+ * log on their behalf: it optionally waits for a short window so that more
+ * committers can join, then makes everything appended so far durable with one
+ * force and wakes up every waiter whose LSN it covered. Waiters that arrive
+ * while a force is in progress are served by the next one, so under load the
+ * number of forces grows much more slowly than the number of commits.
+ * <p>
+ * The thread is started on demand and exits after it has been idle for a
+ * while, so LogFile instances that are simply dropped do not leak threads.
+ * A failed force is fatal: every later wait fails with the same error.
+ */
+class LogFlusher implements Runnable {
+
+    /** The operation the flusher runs: force the log and return the LSN it is now durable up to. */
+    interface Sync {
+        long sync() throws IOException;
+    }
+
+    private static final long IDLE_MILLIS = 200;
+
+    private final Sync log;
+
+    // all protected by this
+    private long durableLsn = 0;
+    private long requestedLsn = 0;
+    private long syncCount = 0;
+    private IOException failure = null;
+    private Thread thread = null;
+
+    private volatile long windowNanos = 0;
+
+    LogFlusher(Sync log) {
+        this.log = log;
+    }
+
+    /** How long the flusher waits for more committers before forcing the log. */
+    void setWindow(long time, TimeUnit unit) {
+        this.windowNanos = unit.toNanos(time);
+    }
+
+    synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /** Block until the log is durable up to lsn. */
+    synchronized void awaitDurable(long lsn) throws IOException {
+        if (lsn <= durableLsn) return;
+        if (failure != null) throw new IOException("log force failed", failure);
+        if (lsn > requestedLsn) requestedLsn = lsn;
+        if (thread == null) {
+            thread = new Thread(this, "log flusher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+        while (durableLsn < lsn) {
+            if (failure != null) throw new IOException("log force failed", failure);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the log");
+            }
+        }
+    }
+
+    /** Record that the log was made durable up to lsn by someone else. */
+    synchronized void markDurable(long lsn) {
+        if (lsn > durableLsn) durableLsn = lsn;
+        notifyAll();
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                long idleSince = System.currentTimeMillis();
+                while (requestedLsn <= durableLsn) {
+                    long idle = System.currentTimeMillis() - idleSince;
+                    if (idle >= IDLE_MILLIS) {
+                        thread = null;
+                        return;
+                    }
+                    try {
+                        wait(IDLE_MILLIS - idle);
+                    } catch (InterruptedException e) {
+                        thread = null;
+                        return;
+                    }
+                }
+            }
+
+            long window = windowNanos;
+            if (window > 0) LockSupport.parkNanos(window);
+
+            long synced = -1;
+            IOException error = null;
+            try {
+                synced = log.sync();
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                syncCount++;
+                if (error != null) {
+                    failure = error;
+                    thread = null;
+                    notifyAll();
+                    return;
+                }
+                if (synced > durableLsn) durableLsn = synced;
+                notifyAll();
+            }
+        }
+    }
+}
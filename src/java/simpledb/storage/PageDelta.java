@@ -0,0 +1,123 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The difference between two images of a page: the byte ranges in which they
+ * differ, with the old and the new contents of each.
+ * <p>
+ * The log writes one of these in place of both full images when it already
+ * holds the page's previous image. Inserting or deleting a tuple changes a
+ * header byte and one slot, so a delta is a few dozen bytes where the two
+ * images are two whole pages.
+ */
+class PageDelta {
+
+    /**
+     * Ranges separated by at most this many equal bytes are merged: copying
+     * the gap into both images costs no more than the header of a new range.
+     */
+    private static final int MERGE_GAP = 4;
+
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int[] offsets, byte[][] before, byte[][] after) {
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** The delta that turns the before image into the after image. */
+    static PageDelta diff(byte[] before, byte[] after) {
+        if (before.length != after.length)
+            throw new IllegalArgumentException("page images of different sizes");
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < before.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            for (int j = end; j < before.length && j - end < MERGE_GAP; j++) {
+                if (before[j] != after[j]) end = j + 1;
+            }
+            ranges.add(new int[] {i, end});
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] oldBytes = new byte[ranges.size()][];
+        byte[][] newBytes = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int from = ranges.get(r)[0], to = ranges.get(r)[1];
+            offsets[r] = from;
+            oldBytes[r] = Arrays.copyOfRange(before, from, to);
+            newBytes[r] = Arrays.copyOfRange(after, from, to);
+        }
+        return new PageDelta(offsets, oldBytes, newBytes);
+    }
+
+    /** The number of bytes {@link #write} produces. */
+    int size() {
+        int size = Integer.BYTES;
+        for (byte[] b : before) size += 2 * Integer.BYTES + 2 * b.length;
+        return size;
+    }
+
+    int numRanges() {
+        return offsets.length;
+    }
+
+    /** Turn the after image, in place, back into the before image. */
+    void undo(byte[] image) {
+        apply(before, image);
+    }
+
+    /** Turn the before image, in place, into the after image. */
+    void redo(byte[] image) {
+        apply(after, image);
+    }
+
+    private void apply(byte[][] contents, byte[] image) {
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(contents[r], 0, image, offsets[r], contents[r].length);
+        }
+    }
+
+    /**
+     * A delta is written as the number of ranges followed by, for each range,
+     * its offset, its length, its old bytes and its new bytes.
+     */
+    void write(LogBuffer out) throws IOException {
+        out.putInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.putInt(offsets[r]);
+            out.putInt(before[r].length);
+            out.put(before[r]);
+            out.put(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        int numRanges = in.readInt();
+        int[] offsets = new int[numRanges];
+        byte[][] before = new byte[numRanges][];
+        byte[][] after = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            in.readFully(before[r]);
+            after[r] = new byte[length];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(offsets, before, after);
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The page I/O of a DbFile.
+ * <p>
+ * Reads and writes are positional: {@link FileChannel#read(ByteBuffer, long)}
+ * and {@link FileChannel#write(ByteBuffer, long)} on one shared channel, which
+ * do not move a shared file pointer, so any number of threads can read and
+ * write pages at the same time without a lock. In memory-mapped mode the file is mapped with
+ * {@link FileChannel#map} in segments of {@link #SEGMENT_SIZE} bytes and a
+ * read copies the page out of the mapping, which costs no system call once the
+ * page is in the OS page cache. The mapping is extended when a read goes past
+ * its end and the file has grown; reads past the end of the file, and all
+ * reads if mapping fails, fall back to positional reads.
+ * <p>
+ * Pages are always copied out of the mapping rather than handed out as
+ * slices of it: a change to a page must not reach the file before the buffer
+ * pool writes the page. A mapped file must not be truncated.
+ */
+public class PagedFile {
+
+    static final long SEGMENT_SIZE = 64L << 20;
+
+    /** The mapped segments and the number of bytes of the file they cover. */
+    private static final class Mapping {
+        final MappedByteBuffer[] segments;
+        final long length;
+
+        Mapping(MappedByteBuffer[] segments, long length) {
+            this.segments = segments;
+            this.length = length;
+        }
+    }
+
+    private static final Mapping UNMAPPED = new Mapping(new MappedByteBuffer[0], 0);
+
+    private final File file;
+    private volatile FileChannel channel;
+    private volatile boolean memoryMapped;
+    private volatile Mapping mapping = UNMAPPED;
+
+    public PagedFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Choose between memory-mapped reads and positional reads.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) mapping = UNMAPPED;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null) {
+            synchronized (this) {
+                if (channel == null)
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE);
+                ch = channel;
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Read dst.length bytes of the file starting at offset into dst.
+     *
+     * @return the number of bytes read, which is less than dst.length only if
+     *         the file ends first, or -1 if offset is at or past the end of the
+     *         file
+     */
+    public int read(long offset, byte[] dst) throws IOException {
+        if (memoryMapped) {
+            Mapping m = mapping;
+            if (offset + dst.length > m.length) m = remap();
+            if (offset + dst.length <= m.length) {
+                copy(m, offset, dst);
+                return dst.length;
+            }
+        }
+        FileChannel ch = channel();
+        ByteBuffer bb = ByteBuffer.wrap(dst);
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, offset + bb.position());
+            if (n < 0) break;
+        }
+        return bb.position() == 0 && dst.length > 0 ? -1 : bb.position();
+    }
+
+    private static void copy(Mapping m, long offset, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            long pos = offset + done;
+            MappedByteBuffer segment = m.segments[(int) (pos / SEGMENT_SIZE)];
+            int index = (int) (pos % SEGMENT_SIZE);
+            int n = Math.min(dst.length - done, segment.capacity() - index);
+            segment.get(index, dst, done, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Extend the mapping to the current end of the file. Full segments are
+     * kept; the last, partial one is mapped again.
+     */
+    private synchronized Mapping remap() throws IOException {
+        Mapping m = mapping;
+        if (!memoryMapped) return m;
+        FileChannel ch = channel();
+        long size = ch.size();
+        if (size <= m.length) return m;
+        int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        MappedByteBuffer[] segments = new MappedByteBuffer[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                long start = i * SEGMENT_SIZE;
+                long length = Math.min(SEGMENT_SIZE, size - start);
+                if (i < m.segments.length && m.segments[i].capacity() == length)
+                    segments[i] = m.segments[i];
+                else
+                    segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // fall back to positional reads
+            memoryMapped = false;
+            mapping = UNMAPPED;
+            return UNMAPPED;
+        }
+        mapping = new Mapping(segments, size);
+        return mapping;
+    }
+
+    /**
+     * Write all of src to the file starting at offset, extending the file if
+     * needed.
+     */
+    public void write(long offset, byte[] src) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer bb = ByteBuffer.wrap(src);
+        while (bb.hasRemaining()) ch.write(bb, offset + bb.position());
+    }
+
+    /** The current length of the file in bytes. */
+    public long size() throws IOException {
+        return channel().size();
+    }
+}
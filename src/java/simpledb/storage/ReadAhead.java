@@ -0,0 +1,186 @@
+package simpledb.storage;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Asynchronous read-ahead for one sequential reader of a file, such as a
+ * HeapFileIterator or the leaf chain of a BTreeFileIterator.
+ * <p>
+ * The reader reports every page it moves to with {@link #accessed(Page)}.
+ * Whenever the reader moves to the page it was expected to move to next, so
+ * from its second page in order on, the following {@link #depth()} pages are
+ * read in the background with {@link BufferPool#prefetch}, which
+ * installs them in the pool without taking any locks; the reader still locks
+ * each page when it asks the pool for it. A jump anywhere else ends the run
+ * until the reader is sequential again.
+ * <p>
+ * Heap files know their next pages from the page numbers alone, so those are
+ * read in parallel. A leaf chain only learns the next page from the right
+ * sibling pointer of the one before it, so it is followed by one background
+ * task that stays at most {@link #depth()} pages ahead of the reader.
+ * <p>
+ * A read-ahead belongs to one iterator; {@link #accessed(Page)} must be called
+ * from the iterator's thread.
+ *
+ * @see BufferPool#newReadAhead(int, int)
+ * @see BufferPool#newReadAhead(Function)
+ */
+public abstract class ReadAhead {
+
+    /** Background readers shared by all pools, so replaced pools leave no threads behind. */
+    static final ExecutorService READERS = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    final BufferPool pool;
+    private final int depth;
+    private PageId expected;
+
+    ReadAhead(BufferPool pool, int depth) {
+        this.pool = pool;
+        this.depth = depth;
+    }
+
+    /** The number of pages read ahead of the reader. */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Tell the read-ahead that the reader moved to the given page.
+     */
+    public void accessed(Page page) {
+        PageId pid = page.getId();
+        boolean inOrder = pid.equals(expected);
+        expected = next(page);
+        if (inOrder) advance(page);
+        else restart();
+    }
+
+    /** The page the reader is expected to move to after page, or null at the end. */
+    abstract PageId next(Page page);
+
+    /** Keep depth() pages in flight past page. */
+    abstract void advance(Page page);
+
+    /** Forget what was read ahead of the reader's old position. */
+    abstract void restart();
+
+    /** Read-ahead for the pages of a heap file, by page number. */
+    static final class Pages extends ReadAhead {
+        private final int tableId;
+        private final int numPages;
+        private int issued = -1;
+        /** The page the reader is on. */
+        private volatile int position = -1;
+
+        Pages(BufferPool pool, int depth, int tableId, int numPages) {
+            super(pool, depth);
+            this.tableId = tableId;
+            this.numPages = numPages;
+        }
+
+        @Override
+        PageId next(Page page) {
+            int n = page.getId().getPageNumber() + 1;
+            return n < numPages ? new HeapPageId(tableId, n) : null;
+        }
+
+        @Override
+        void advance(Page page) {
+            int current = page.getId().getPageNumber();
+            position = current;
+            int last = Math.min(current + depth(), numPages - 1);
+            for (int i = Math.max(issued, current) + 1; i <= last; i++) {
+                HeapPageId pid = new HeapPageId(tableId, i);
+                READERS.execute(() -> pool.prefetch(pid, () -> position < pid.getPageNumber()));
+                issued = i;
+            }
+        }
+
+        @Override
+        void restart() {
+            issued = -1;
+            position = -1;
+        }
+    }
+
+    /** Read-ahead along a chain of pages that point to the next one. */
+    static final class Chain extends ReadAhead {
+        private final Function<Page, PageId> nextPage;
+        /** Pages the reader has moved to, and pages read ahead, in this run. */
+        private int consumed, read;
+        /** The last page read ahead, where the background task carries on from. */
+        private Page last;
+        private boolean running;
+        /** Bumped by restart() so that a task of an old run stops. */
+        private int run;
+
+        Chain(BufferPool pool, int depth, Function<Page, PageId> nextPage) {
+            super(pool, depth);
+            this.nextPage = nextPage;
+        }
+
+        @Override
+        PageId next(Page page) {
+            return nextPage.apply(page);
+        }
+
+        @Override
+        synchronized void advance(Page page) {
+            consumed++;
+            if (read < consumed) {
+                // the reader caught up, carry on from its page
+                read = consumed;
+                last = page;
+            }
+            if (!running && read - consumed < depth()) {
+                running = true;
+                int thisRun = run;
+                READERS.execute(() -> follow(thisRun));
+            }
+        }
+
+        @Override
+        synchronized void restart() {
+            run++;
+            consumed = read = 0;
+            last = null;
+            running = false;
+        }
+
+        private synchronized boolean wanted(int thisRun, int index) {
+            return run == thisRun && consumed < index;
+        }
+
+        private void follow(int thisRun) {
+            while (true) {
+                PageId pid;
+                int index;
+                synchronized (this) {
+                    if (run != thisRun) return;
+                    pid = last == null || read - consumed >= depth() ? null : nextPage.apply(last);
+                    if (pid == null) {
+                        running = false;
+                        return;
+                    }
+                    index = read + 1;
+                }
+                Page page = pool.prefetch(pid, () -> wanted(thisRun, index));
+                synchronized (this) {
+                    if (run != thisRun) return;
+                    if (page == null) {
+                        running = false;
+                        return;
+                    }
+                    last = page;
+                    read++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.util.SlotBitmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A temporary file of tuples, for operators whose input does not fit in
+ * memory.
+ * <p>
+ * Tuples are appended to pages in the format of {@link HeapPage}, a slot
+ * bitmap followed by fixed-size slots, and pages are written and read back
+ * whole and in order. The file does not go through the buffer pool or the
+ * catalog and takes no locks: it belongs to the operator that created it,
+ * which deletes it when it is done.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private final int numSlots;
+    private final int headerSize;
+    private final byte[] page;
+    private final ByteBuffer buf;
+    private OutputStream out;
+    // the next slot of the page being filled
+    private int slot;
+    private int numTuples;
+
+    public SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".dat");
+        file.deleteOnExit();
+        int pageSize = BufferPool.getPageSize();
+        this.numSlots = (pageSize * 8) / (td.getSize() * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        this.page = new byte[pageSize];
+        this.buf = ByteBuffer.wrap(page);
+        this.out = new BufferedOutputStream(new FileOutputStream(file), pageSize * 8);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** The number of tuples added. */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /** Append a tuple. No tuples can be added once the file has been read. */
+    public void add(Tuple t) throws IOException {
+        if (out == null) throw new IllegalStateException("spill file already read");
+        if (slot == numSlots) writePage();
+        page[slot >>> 3] |= (byte) (1 << (slot & 7));
+        int offset = headerSize + slot * td.getSize();
+        for (int j = 0; j < td.numFields(); j++) {
+            t.getField(j).serialize(buf, offset);
+            offset += td.getFieldType(j).getLen();
+        }
+        slot++;
+        numTuples++;
+    }
+
+    private void writePage() throws IOException {
+        out.write(page);
+        Arrays.fill(page, (byte) 0);
+        slot = 0;
+    }
+
+    /** Write out the last page, if it was not. */
+    private void finish() throws IOException {
+        if (out == null) return;
+        if (slot > 0) writePage();
+        out.close();
+        out = null;
+    }
+
+    /**
+     * An iterator over the tuples in the order they were added. The file can
+     * be read any number of times, but not added to any more.
+     */
+    public DbFileIterator iterator() {
+        return new AbstractDbFileIterator() {
+            private DataInputStream in;
+            private final byte[] data = new byte[page.length];
+            private final ByteBuffer dataBuf = ByteBuffer.wrap(data);
+            // the next slot to look at on the page in data, numSlots if none is read
+            private int pos = numSlots;
+
+            public void open() throws DbException {
+                try {
+                    finish();
+                    close();
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), data.length * 8));
+                    pos = numSlots;
+                } catch (IOException e) {
+                    throw new DbException("could not read spill file: " + e.getMessage());
+                }
+            }
+
+            public void rewind() throws DbException {
+                open();
+            }
+
+            protected Tuple readNext() throws DbException {
+                if (in == null) return null;
+                try {
+                    int s = SlotBitmap.nextUsed(data, 0, numSlots, pos);
+                    while (s < 0) {
+                        try {
+                            in.readFully(data);
+                        } catch (EOFException e) {
+                            return null;
+                        }
+                        s = SlotBitmap.nextUsed(data, 0, numSlots, 0);
+                    }
+                    pos = s + 1;
+                    Tuple t = new Tuple(td);
+                    int offset = headerSize + s * td.getSize();
+                    for (int j = 0; j < td.numFields(); j++) {
+                        Type type = td.getFieldType(j);
+                        t.setField(j, type.parse(dataBuf, offset));
+                        offset += type.getLen();
+                    }
+                    return t;
+                } catch (IOException e) {
+                    throw new DbException("could not read spill file: " + e.getMessage());
+                }
+            }
+
+            public void close() {
+                super.close();
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                in = null;
+            }
+        };
+    }
+
+    /** Delete the file; the tuples cannot be read afterwards. */
+    public void delete() {
+        try {
+            if (out != null) out.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+        file.delete();
+    }
+}
@@ -4,6 +4,7 @@ import simpledb.common.Type;
 import simpledb.execution.Predicate;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -69,6 +70,18 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	public void serialize(ByteBuffer buf, int offset) {
+		String s = value;
+		if (s.length() > maxSize)
+			s = s.substring(0, maxSize);
+		buf.putInt(offset, s.length());
+		offset += 4;
+		for (int i = 0; i < s.length(); i++)
+			buf.put(offset + i, (byte) s.charAt(i));
+		for (int i = s.length(); i < maxSize; i++)
+			buf.put(offset + i, (byte) 0);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
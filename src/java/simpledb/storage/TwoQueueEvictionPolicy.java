@@ -0,0 +1,79 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Simplified 2Q replacement (Johnson and Shasha, VLDB '94).
+ * <p>
+ * A page seen for the first time goes to the FIFO queue A1in. Pages evicted
+ * from A1in are remembered, without their data, in the ghost queue A1out; a
+ * page that is loaded again while still in A1out is considered hot and goes
+ * to the LRU queue Am. Victims are taken from A1in while it is larger than
+ * its share of the pool, so a sequential scan only ever cycles through A1in
+ * and cannot flush the hot pages kept in Am.
+ * <p>
+ * All state is protected by this object's monitor, including on hits, which
+ * makes this policy more expensive under concurrent hits than
+ * {@link ClockEvictionPolicy}.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+
+    public TwoQueueEvictionPolicy(int capacity) {
+        // the sizes recommended by the paper: 25% for A1in, 50% for A1out
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+    }
+
+    public synchronized void recordInsert(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid)) return;
+        if (a1out.remove(pid)) am.add(pid);
+        else a1in.add(pid);
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        // hits in A1in are treated as correlated references and ignored
+        if (am.remove(pid)) am.add(pid);
+    }
+
+    public synchronized void recordRemove(PageId pid) {
+        if (!a1in.remove(pid)) am.remove(pid);
+    }
+
+    public synchronized PageId evict(Predicate<PageId> canEvict) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) victim = evictFrom(a1in, canEvict);
+        if (victim == null) victim = evictFrom(am, canEvict);
+        if (victim == null) victim = evictFrom(a1in, canEvict);
+        return victim;
+    }
+
+    private PageId evictFrom(LinkedHashSet<PageId> queue, Predicate<PageId> canEvict) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (!canEvict.test(pid)) continue;
+            it.remove();
+            if (queue == a1in) remember(pid);
+            return pid;
+        }
+        return null;
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
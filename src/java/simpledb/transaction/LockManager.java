@@ -1,75 +1,304 @@
 package simpledb.transaction;
 
+import simpledb.common.DeadlockException;
 import simpledb.storage.PageId;
+
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Page-level shared/exclusive locks.
+ * <p>
+ * Every locked page has its own {@link LockQueue}, guarded by its own monitor,
+ * so requests for different pages never contend. A request that cannot be
+ * granted is queued and its thread parks until a release on that page wakes
+ * it up. Requests are granted in arrival order, except that consecutive shared
+ * requests are granted together and a lock upgrade goes ahead of every other
+ * waiter. A shared request that arrives while an exclusive one is waiting
+ * queues behind it, so writers are not starved by a stream of readers.
+ * <p>
+ * Deadlocks are detected with a waits-for graph. Whenever a request blocks,
+ * or the set of transactions blocking it changes, its edges are updated and
+ * the graph is searched for a cycle through the waiting transaction. Since
+ * the graph had no cycle before, that is the only place a new one can be.
+ * One transaction on the cycle is picked according to the {@link VictimPolicy}
+ * and its pending request fails with a {@link DeadlockException}.
+ *
  * @author freya
  * @date 2022/6/18
  **/
 public class LockManager {
 
-    ConcurrentHashMap<PageId, ConcurrentHashMap<TransactionId, PageLock>> lockMap;
+    /** How the transaction to abort is picked among those on a waits-for cycle. */
+    public enum VictimPolicy {
+        /** abort the transaction that began last, it has likely done the least work */
+        YOUNGEST,
+        /** abort the transaction holding the fewest locks, ties go to the youngest */
+        FEWEST_LOCKS
+    }
+
+    /** A lock request waiting in a page's queue. */
+    private static class Request {
+        final TransactionId tid;
+        final int type;
+        final Thread thread;
+
+        Request(TransactionId tid, int type, Thread thread) {
+            this.tid = tid;
+            this.type = type;
+            this.thread = thread;
+        }
+    }
+
+    /** Lock state of one page: the granted locks and the requests waiting for it. */
+    private static class LockQueue {
+        final Map<TransactionId, PageLock> holders = new HashMap<>();
+        final ArrayDeque<Request> waiters = new ArrayDeque<>();
+        /** set once the queue has been removed from lockMap; it must not be used any more */
+        boolean retired = false;
+    }
+
+    private final ConcurrentHashMap<PageId, LockQueue> lockMap;
+    /** the pages each transaction holds a lock on, so it can release them without a scan */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> txnLocks;
+
+    // the waits-for graph, only touched by requests that have to wait.
+    // Lock order: a page's LockQueue, then graphLock.
+    private final Object graphLock = new Object();
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+    private final Map<TransactionId, Thread> waiting = new HashMap<>();
+    private final Set<TransactionId> victims = new HashSet<>();
+
+    private volatile VictimPolicy victimPolicy = VictimPolicy.YOUNGEST;
 
     public LockManager(){
         this.lockMap = new ConcurrentHashMap<>();
+        this.txnLocks = new ConcurrentHashMap<>();
     }
 
-    public synchronized boolean tryLock(PageId pid, TransactionId tid, int lockType, int timeout){
-        long start = System.currentTimeMillis();
-        while (true){
-            if (System.currentTimeMillis() > start + timeout)return false;
-            if (acquireLock(pid, tid, lockType))return true;
-        }
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
     }
 
-    public synchronized boolean acquireLock(PageId pid, TransactionId tid, int lockType){
-        //该页没任何锁的数据
-        //System.out.println("     -----------          " + pid);
-        if(!this.lockMap.containsKey(pid)){
-            PageLock lock = new PageLock(tid, lockType);
-            ConcurrentHashMap<TransactionId, PageLock> map = new ConcurrentHashMap<>();
-            lockMap.put(pid, map);
-            map.put(tid, lock);
-            return true;
+    /**
+     * Acquire a lock on a page, waiting as long as it takes for conflicting
+     * locks to be released.
+     *
+     * @throws DeadlockException if the transaction was chosen to break a deadlock
+     * @throws TransactionAbortedException if the thread was interrupted while
+     *         waiting; the lock is not held
+     */
+    public void lock(PageId pid, TransactionId tid, int lockType)
+            throws DeadlockException, TransactionAbortedException {
+        if (!acquire(pid, tid, lockType, -1)) throw new TransactionAbortedException();
+    }
+
+    /**
+     * Acquire a lock on a page, waiting for conflicting locks to be released.
+     *
+     * @param timeout how long to wait, in milliseconds
+     * @return true if the lock was granted, false if the wait timed out or the
+     *         thread was interrupted
+     * @throws DeadlockException if the transaction was chosen to break a deadlock
+     */
+    public boolean tryLock(PageId pid, TransactionId tid, int lockType, int timeout) throws DeadlockException {
+        return acquire(pid, tid, lockType, TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeout)));
+    }
+
+    /**
+     * Acquire a lock on a page only if it can be granted without waiting.
+     */
+    public boolean acquireLock(PageId pid, TransactionId tid, int lockType){
+        try {
+            return acquire(pid, tid, lockType, 0);
+        } catch (DeadlockException e) {
+            // a request that does not wait cannot be part of a deadlock
+            throw new IllegalStateException(e);
         }
-        ConcurrentHashMap<TransactionId, PageLock> locks = lockMap.get(pid);
-        int hold = isHold(locks, tid);
+    }
 
-        //事务对该页不持有锁
-        if (hold == -1){
-            //当前页没有锁
-            if (locks.isEmpty()){
-                locks.put(tid, new PageLock(tid, lockType));
-                return true;
+    /**
+     * @param timeoutNanos how long to wait; 0 not to wait at all, negative to
+     *                     wait until granted
+     */
+    private boolean acquire(PageId pid, TransactionId tid, int lockType, long timeoutNanos)
+            throws DeadlockException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        LockQueue q;
+        Request req;
+        while (true) {
+            q = lockMap.computeIfAbsent(pid, k -> new LockQueue());
+            synchronized (q) {
+                if (q.retired) continue;
+                PageLock held = q.holders.get(tid);
+                if (held != null && held.getType() >= lockType) return true;
+
+                req = new Request(tid, lockType, Thread.currentThread());
+                if (grantable(q, req)) {
+                    grant(pid, q, req);
+                    return true;
+                }
+                if (timeoutNanos == 0) return false;
+                // an upgrade cannot wait behind requests that wait for it
+                if (held != null) q.waiters.addFirst(req);
+                else q.waiters.addLast(req);
+                break;
             }
-            //有锁，则拿不到独占
-            if (lockType == PageLock.EXCLUSIVE)return false;
-            //有锁，且存在独占，也不行
-            if (locks.size()==1)
-                for (PageLock lock : locks.values()) {
-                    if (lock.getType() == PageLock.EXCLUSIVE)return false;
+        }
+
+        boolean granted = false;
+        try {
+            while (true) {
+                synchronized (q) {
+                    if (grantable(q, req)) {
+                        grant(pid, q, req);
+                        granted = true;
+                        return true;
+                    }
+                    waitFor(tid, blockers(q, req));
                 }
-            return true;
+                if (timeoutNanos < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) return false;
+                    LockSupport.parkNanos(this, left);
+                }
+                if (Thread.currentThread().isInterrupted()) return false;
+            }
+        } finally {
+            stopWaiting(tid);
+            synchronized (q) {
+                q.waiters.remove(req);
+                // whoever was queued behind this request may be able to go now
+                wakeWaiters(q);
+                if (!granted) retireIfUnused(pid, q);
+            }
+        }
+    }
+
+    /**
+     * A request can be granted if it is compatible with every lock held by
+     * other transactions and no incompatible request is queued ahead of it.
+     */
+    private static boolean grantable(LockQueue q, Request req) {
+        boolean exclusive = req.type == PageLock.EXCLUSIVE;
+        for (PageLock held : q.holders.values()) {
+            if (held.getTid().equals(req.tid)) continue;
+            if (exclusive || held.getType() == PageLock.EXCLUSIVE) return false;
+        }
+        for (Request waiter : q.waiters) {
+            if (waiter == req) return true;
+            if (exclusive || waiter.type == PageLock.EXCLUSIVE) return false;
+        }
+        return true;
+    }
+
+    /** The transactions a request that is not grantable waits for. */
+    private static Set<TransactionId> blockers(LockQueue q, Request req) {
+        boolean exclusive = req.type == PageLock.EXCLUSIVE;
+        Set<TransactionId> blockers = new HashSet<>();
+        for (PageLock held : q.holders.values()) {
+            if (held.getTid().equals(req.tid)) continue;
+            if (exclusive || held.getType() == PageLock.EXCLUSIVE) blockers.add(held.getTid());
+        }
+        for (Request waiter : q.waiters) {
+            if (waiter == req) break;
+            if (waiter.tid.equals(req.tid)) continue;
+            if (exclusive || waiter.type == PageLock.EXCLUSIVE) blockers.add(waiter.tid);
         }
+        return blockers;
+    }
+
+    private void grant(PageId pid, LockQueue q, Request req) {
+        if (q.holders.put(req.tid, new PageLock(req.tid, req.type)) == null)
+            txnLocks.computeIfAbsent(req.tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
 
-        //持有锁
+    private static void wakeWaiters(LockQueue q) {
+        for (Request waiter : q.waiters) LockSupport.unpark(waiter.thread);
+    }
 
-        //持有共享锁
-        if (hold == PageLock.SHARE){
-            if (lockType == PageLock.SHARE)return true;
+    private void retireIfUnused(PageId pid, LockQueue q) {
+        if (q.holders.isEmpty() && q.waiters.isEmpty()) {
+            q.retired = true;
+            lockMap.remove(pid, q);
+        }
+    }
 
-            //持有共享，并且只有一个事务持久，则可以升级
-            if (locks.size() == 1){
-                locks.get(tid).setType(PageLock.EXCLUSIVE);
-                return true;
+    /**
+     * Record that tid waits for the given transactions and check whether that
+     * closes a cycle in the waits-for graph.
+     *
+     * @throws DeadlockException if tid was chosen as the victim of a deadlock,
+     *         now or by another transaction while tid was parked
+     */
+    private void waitFor(TransactionId tid, Set<TransactionId> blockers) throws DeadlockException {
+        synchronized (graphLock) {
+            if (victims.remove(tid)) {
+                waitsFor.remove(tid);
+                throw new DeadlockException();
             }
-            //升级失败
-            return false;
+            waiting.put(tid, Thread.currentThread());
+            Set<TransactionId> old = waitsFor.put(tid, blockers);
+            if (blockers.equals(old)) return;
+
+            List<TransactionId> cycle = findCycle(tid);
+            if (cycle == null) return;
+            TransactionId victim = chooseVictim(cycle);
+            waitsFor.remove(victim);
+            if (victim.equals(tid)) throw new DeadlockException();
+            victims.add(victim);
+            LockSupport.unpark(waiting.get(victim));
         }
+    }
 
-        //持有独占锁
-        return true;
+    private void stopWaiting(TransactionId tid) {
+        synchronized (graphLock) {
+            waitsFor.remove(tid);
+            waiting.remove(tid);
+            victims.remove(tid);
+        }
+    }
+
+    /** @return the transactions on a waits-for cycle through start, or null if there is none */
+    private List<TransactionId> findCycle(TransactionId start) {
+        Deque<TransactionId> path = new ArrayDeque<>();
+        return findCycle(start, start, path, new HashSet<>()) ? new ArrayList<>(path) : null;
+    }
+
+    private boolean findCycle(TransactionId node, TransactionId start,
+                              Deque<TransactionId> path, Set<TransactionId> visited) {
+        path.addLast(node);
+        for (TransactionId next : waitsFor.getOrDefault(node, Collections.emptySet())) {
+            if (next.equals(start)) return true;
+            if (visited.add(next) && findCycle(next, start, path, visited)) return true;
+        }
+        path.removeLast();
+        return false;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        for (TransactionId t : cycle) {
+            if (victim == null || isBetterVictim(t, victim)) victim = t;
+        }
+        return victim;
+    }
+
+    private boolean isBetterVictim(TransactionId t, TransactionId than) {
+        if (victimPolicy == VictimPolicy.FEWEST_LOCKS) {
+            int cmp = Integer.compare(lockCount(t), lockCount(than));
+            if (cmp != 0) return cmp < 0;
+        }
+        return t.getId() > than.getId();
+    }
+
+    private int lockCount(TransactionId tid) {
+        Set<PageId> held = txnLocks.get(tid);
+        return held == null ? 0 : held.size();
     }
 
     /**
@@ -78,28 +307,44 @@ public class LockManager {
      * @param tid
      * @return 不持有锁，返回-1， 否则返回对应的持有类型
      */
-    public synchronized int isHold(PageId pid, TransactionId tid){
-        if (!lockMap.containsKey(pid))return -1;
-        ConcurrentHashMap<TransactionId, PageLock> locks = lockMap.get(pid);
-        if (!locks.containsKey(tid))return -1;
-        else return locks.get(tid).getType();
+    public int isHold(PageId pid, TransactionId tid){
+        LockQueue q = lockMap.get(pid);
+        if (q == null) return -1;
+        synchronized (q) {
+            PageLock held = q.holders.get(tid);
+            return held == null ? -1 : held.getType();
+        }
     }
 
-    public synchronized int isHold(ConcurrentHashMap<TransactionId, PageLock> locks, TransactionId tid){
-        if (!locks.containsKey(tid))return -1;
-        else return locks.get(tid).getType();
+    public boolean releaseLock(PageId pid, TransactionId tid){
+        if (!release(pid, tid)) return false;
+        txnLocks.computeIfPresent(tid, (t, held) -> {
+            held.remove(pid);
+            return held.isEmpty() ? null : held;
+        });
+        return true;
     }
 
-    public synchronized boolean releaseLock(PageId pid, TransactionId tid){
-        if (isHold(pid,tid) == -1)return false;
-        lockMap.get(pid).remove(tid);
-        if (lockMap.get(pid).isEmpty())lockMap.remove(pid);
-        return true;
+    /**
+     * Release every lock held by a transaction, at a cost proportional to the
+     * number of locks it holds.
+     */
+    public void releaseLockByTxn(TransactionId tid){
+        Set<PageId> held = txnLocks.remove(tid);
+        if (held == null) return;
+        for (PageId pageId : held) {
+            release(pageId, tid);
+        }
     }
 
-    public synchronized void releaseLockByTxn(TransactionId tid){
-        for (PageId pageId : lockMap.keySet()) {
-            if (isHold(pageId, tid)!=-1)releaseLock(pageId,tid);
+    private boolean release(PageId pid, TransactionId tid) {
+        LockQueue q = lockMap.get(pid);
+        if (q == null) return false;
+        synchronized (q) {
+            if (q.holders.remove(tid) == null) return false;
+            if (!q.waiters.isEmpty()) wakeWaiters(q);
+            else retireIfUnused(pid, q);
+            return true;
         }
     }
 }
@@ -3,6 +3,7 @@ package simpledb.util;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -21,29 +22,39 @@ public class HeapFileIterator implements DbFileIterator {
     int numPages;
     private int pagePos = 0;
     private Iterator<Tuple> pageIterator;
+    private BufferRing ring;
+    private ReadAhead readAhead;
+    private final Predicate predicate;
 //    private HeapPage heapPage;
 
 
     public HeapFileIterator(TransactionId tid, int tableId, int numPages) throws DbException, TransactionAbortedException {
+        this(tid, tableId, numPages, null);
+    }
+
+    /**
+     * @param predicate only tuples that satisfy it are returned, or all of
+     *                  them if it is null
+     */
+    public HeapFileIterator(TransactionId tid, int tableId, int numPages, Predicate predicate) {
         this.tid = tid;
         this.tableId = tableId;
         this.numPages = numPages;
+        this.predicate = predicate;
     }
 
-    private Iterator<Tuple> getPageIterator(PageId pid){
-        try {
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,pid, Permissions.READ_ONLY);
-            //System.out.println("It: " + page + "  " + pid.getPageNumber() + "  empty: " + page.getNumEmptySlots());
-            return page.iterator();
-        } catch (TransactionAbortedException | DbException e) {
-            e.printStackTrace();
-        }
-        return null;
+    private Iterator<Tuple> getPageIterator(PageId pid) throws TransactionAbortedException, DbException {
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,pid, Permissions.READ_ONLY, ring);
+        if (readAhead != null) readAhead.accessed(page);
+        //System.out.println("It: " + page + "  " + pid.getPageNumber() + "  empty: " + page.getNumEmptySlots());
+        return page.iterator(predicate);
     }
 
     @Override
     public void open() throws DbException, TransactionAbortedException {
         pagePos = 0;
+        ring = Database.getBufferPool().newScanRing(numPages);
+        readAhead = Database.getBufferPool().newReadAhead(tableId, numPages);
         pageIterator = getPageIterator(new HeapPageId(tableId,pagePos));
     }
 
@@ -73,5 +84,7 @@ public class HeapFileIterator implements DbFileIterator {
     @Override
     public void close() {
         pageIterator = null;
+        ring = null;
+        readAhead = null;
     }
 }
@@ -0,0 +1,112 @@
+package simpledb.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash table from int keys to non-negative int values, such as row numbers
+ * or group numbers, for joins and aggregates on INT_TYPE columns.
+ * <p>
+ * Keys and values are kept in two flat arrays and collisions are resolved
+ * by linear probing, so a lookup reads adjacent array slots instead of
+ * following pointers through boxed keys and map entries. An empty slot
+ * holds the value {@link #NONE}. The number of slots is a power of two at
+ * least 4/3 of the number of keys; a key's first slot is given by the top
+ * bits of the key times the golden ratio, which spreads runs of consecutive
+ * keys.
+ */
+public class IntHashTable {
+
+    /** The value of a key that is not in the table. */
+    public static final int NONE = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int shift;
+
+    public IntHashTable() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of keys to make room for
+     */
+    public IntHashTable(int expectedSize) {
+        allocate(Math.max(2, Integer.highestOneBit(Math.max(1, expectedSize / 3 * 4 + 1)) << 1));
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NONE);
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slot(int key) {
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    /** The number of keys. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of a key, or {@link #NONE} if it is not in the table
+     */
+    public int get(int key) {
+        int mask = keys.length - 1;
+        for (int s = slot(key); ; s = (s + 1) & mask) {
+            int value = values[s];
+            if (value == NONE || keys[s] == key) return value;
+        }
+    }
+
+    /**
+     * Set the value of a key.
+     *
+     * @param value the value, which must not be negative
+     * @return the previous value, or {@link #NONE} if the key was not in the
+     *         table
+     */
+    public int put(int key, int value) {
+        if (value < 0) throw new IllegalArgumentException("negative value " + value);
+        int mask = keys.length - 1;
+        int s = slot(key);
+        for (; values[s] != NONE; s = (s + 1) & mask) {
+            if (keys[s] == key) {
+                int previous = values[s];
+                values[s] = value;
+                return previous;
+            }
+        }
+        keys[s] = key;
+        values[s] = value;
+        if (++size > keys.length / 4 * 3) grow();
+        return NONE;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys, oldValues = values;
+        allocate(keys.length * 2);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == NONE) continue;
+            int s = slot(oldKeys[i]);
+            while (values[s] != NONE) s = (s + 1) & mask;
+            keys[s] = oldKeys[i];
+            values[s] = oldValues[i];
+        }
+    }
+
+    /** Remove all keys, keeping the arrays. */
+    public void clear() {
+        Arrays.fill(values, NONE);
+        size = 0;
+    }
+
+    /** The number of bytes of the table's arrays. */
+    public long sizeInBytes() {
+        return 8L * keys.length;
+    }
+}
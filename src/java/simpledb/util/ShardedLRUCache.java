@@ -0,0 +1,121 @@
+package simpledb.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A concurrent LRU cache partitioned into a fixed number of shards.
+ * <p>
+ * Each shard is an {@link LRUCache} guarded by its own monitor, so lookups of
+ * keys that hash to different shards never contend with each other. The
+ * replacement order is kept per shard: {@link #evictOldest()} walks the shards
+ * round-robin and evicts the least recently used entry of the first non-empty
+ * one, which approximates a global LRU without a global lock.
+ * <p>
+ * The capacity is global and only used, like in {@link LRUCache}, to decide
+ * whether {@link #evictOldest()} should evict anything at all.
+ */
+public class ShardedLRUCache<K,V> {
+
+    /** Default number of shards, rounded up to a power of two. */
+    public static final int DEFAULT_SHARDS = 16;
+
+    private final LRUCache<K,V>[] shards;
+    private final int mask;
+    private final int cap;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger hand = new AtomicInteger();
+
+    public ShardedLRUCache(int cap) {
+        this(cap, DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param cap the number of entries at which {@link #evictOldest()} starts evicting
+     * @param numShards the number of independently locked partitions
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedLRUCache(int cap, int numShards) {
+        if (numShards <= 0) throw new IllegalArgumentException("numShards must be positive");
+        int n = Integer.highestOneBit(numShards);
+        if (n < numShards) n <<= 1;
+        this.cap = cap;
+        this.mask = n - 1;
+        this.shards = (LRUCache<K,V>[]) new LRUCache<?,?>[n];
+        // shards never evict on their own, the capacity check is done here
+        for (int i = 0; i < n; i++) shards[i] = new LRUCache<>(0);
+    }
+
+    private LRUCache<K,V> shardFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & mask];
+    }
+
+    public int getSize() {
+        return size.get();
+    }
+
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    public V get(K key) {
+        LRUCache<K,V> shard = shardFor(key);
+        synchronized (shard) {
+            return shard.get(key);
+        }
+    }
+
+    public void put(K key, V value) {
+        LRUCache<K,V> shard = shardFor(key);
+        synchronized (shard) {
+            int before = shard.getSize();
+            shard.put(key, value);
+            if (shard.getSize() > before) size.incrementAndGet();
+        }
+    }
+
+    public void remove(K key) {
+        LRUCache<K,V> shard = shardFor(key);
+        synchronized (shard) {
+            int before = shard.getSize();
+            shard.remove(key);
+            if (shard.getSize() < before) size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Evict the least recently used entry of the next non-empty shard.
+     * @return the evicted value, or null if the cache is below capacity or empty
+     */
+    public V evictOldest() {
+        if (size.get() < cap) return null;
+        int start = hand.getAndIncrement();
+        for (int i = 0; i < shards.length; i++) {
+            LRUCache<K,V> shard = shards[(start + i) & mask];
+            synchronized (shard) {
+                if (shard.getSize() == 0) continue;
+                V value = shard.evictOldest();
+                size.decrementAndGet();
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return an iterator over a snapshot of the cached values
+     */
+    public Iterator<V> getValueIterator() {
+        List<V> list = new ArrayList<>(size.get());
+        for (LRUCache<K,V> shard : shards) {
+            synchronized (shard) {
+                Iterator<V> it = shard.getValueIterator();
+                while (it.hasNext()) list.add(it.next());
+            }
+        }
+        return list.iterator();
+    }
+
+}
@@ -0,0 +1,85 @@
+package simpledb.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Word-at-a-time operations on the slot bitmaps in page headers.
+ * <p>
+ * A page header stores the bit for slot i in bit i % 8 of byte i / 8, which
+ * is the bit order of a little-endian long: read eight header bytes as one
+ * long and bit j of it is slot 64 * word + j. Finding a used or an empty
+ * slot, or counting the used ones, then takes one
+ * {@link Long#numberOfTrailingZeros} or {@link Long#bitCount} per 64 slots
+ * instead of a test per slot.
+ * <p>
+ * Every method takes the page data, the offset of the bitmap in it and the
+ * number of slots; header bits past the last slot are ignored.
+ */
+public final class SlotBitmap {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private SlotBitmap() {
+    }
+
+    /** The bits of slots 64 * w to 64 * w + 63, zero past the last slot. */
+    private static long word(byte[] data, int offset, int numSlots, int w) {
+        int start = offset + w * 8;
+        int bits = numSlots - w * 64;
+        if (bits >= 64) return (long) LONGS.get(data, start);
+        long word = 0;
+        for (int i = 0; i * 8 < bits; i++) word |= (data[start + i] & 0xFFL) << (8 * i);
+        return word & ((1L << bits) - 1);
+    }
+
+    private static int numWords(int numSlots) {
+        return (numSlots + 63) >>> 6;
+    }
+
+    /** The number of used slots. */
+    public static int countUsed(byte[] data, int offset, int numSlots) {
+        int count = 0;
+        for (int w = 0; w < numWords(numSlots); w++) count += Long.bitCount(word(data, offset, numSlots, w));
+        return count;
+    }
+
+    /** The first used slot at or after from, or -1 if there is none. */
+    public static int nextUsed(byte[] data, int offset, int numSlots, int from) {
+        if (from >= numSlots) return -1;
+        int w = from >>> 6;
+        long word = word(data, offset, numSlots, w) & (-1L << from);
+        while (word == 0) {
+            if (++w >= numWords(numSlots)) return -1;
+            word = word(data, offset, numSlots, w);
+        }
+        return w * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    /** The last used slot at or before from, or -1 if there is none. */
+    public static int previousUsed(byte[] data, int offset, int numSlots, int from) {
+        if (from < 0) return -1;
+        if (from >= numSlots) from = numSlots - 1;
+        int w = from >>> 6;
+        long word = word(data, offset, numSlots, w) & (-1L >>> (63 - (from & 63)));
+        while (word == 0) {
+            if (--w < 0) return -1;
+            word = word(data, offset, numSlots, w);
+        }
+        return w * 64 + 63 - Long.numberOfLeadingZeros(word);
+    }
+
+    /** The first empty slot at or after from, or -1 if there is none. */
+    public static int nextEmpty(byte[] data, int offset, int numSlots, int from) {
+        if (from >= numSlots) return -1;
+        int w = from >>> 6;
+        long word = ~word(data, offset, numSlots, w) & (-1L << from);
+        while (word == 0) {
+            if (++w >= numWords(numSlots)) return -1;
+            word = ~word(data, offset, numSlots, w);
+        }
+        int slot = w * 64 + Long.numberOfTrailingZeros(word);
+        return slot < numSlots ? slot : -1;
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Delete;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.AbortEvictionTest;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+
+    @After public void stopWriter() {
+        Database.getBufferPool().stopBackgroundWriter();
+    }
+
+    /** The number of tuples in f on disk, read without the buffer pool. */
+    private static int tuplesOnDisk(HeapFile f) {
+        int count = 0;
+        for (int i = 0; i < f.numPages(); i++) {
+            HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), i));
+            for (Iterator<?> it = page.iterator(); it.hasNext(); it.next()) count++;
+        }
+        return count;
+    }
+
+    /** Wait up to ten seconds for f to hold the given number of tuples on disk. */
+    private static void awaitTuplesOnDisk(HeapFile f, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (tuplesOnDisk(f) != expected && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(expected, tuplesOnDisk(f));
+    }
+
+    /**
+     * Unit test for the background writer: a commit only logs its pages,
+     * and the writer puts them on disk afterwards
+     */
+    @Test public void commitLeavesPagesToWriter() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = Database.getBufferPool();
+        bp.startBackgroundWriter(1, 0, TimeUnit.HOURS);
+        assertTrue(bp.isBackgroundWriterRunning());
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+        assertEquals(10, tuplesOnDisk(f));
+
+        bp.startBackgroundWriter(10, 0, TimeUnit.MILLISECONDS);
+        awaitTuplesOnDisk(f, 11);
+
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /**
+     * Unit test for the background writer: pages of a running transaction
+     * are written before it commits, and undone on disk when it aborts
+     */
+    @Test public void stolenPagesAreRolledBack() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.getBufferPool().startBackgroundWriter(10, 0, TimeUnit.MILLISECONDS);
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        awaitTuplesOnDisk(f, 11);
+        t.transactionComplete(true);
+        assertEquals(10, tuplesOnDisk(f));
+
+        t = new Transaction();
+        t.start();
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /**
+     * Unit test for eviction while the background writer runs: a transaction
+     * may change more pages than the pool holds, and its changes are undone
+     * when it aborts
+     */
+    @Test public void evictionStealsDirtyPages() throws Exception {
+        int rows = 504 * 10;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        Database.resetBufferPool(4);
+        Database.getBufferPool().startBackgroundWriter(1, 0, TimeUnit.HOURS);
+
+        Transaction t = new Transaction();
+        t.start();
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        assertEquals(rows, SystemTestUtil.tupleToList(delete.next()).get(0).intValue());
+        delete.close();
+        assertTrue(tuplesOnDisk(f) < rows);
+        t.transactionComplete(true);
+        assertEquals(rows, tuplesOnDisk(f));
+
+        t = new Transaction();
+        t.start();
+        int count = 0;
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        for (; scan.hasNext(); scan.next()) count++;
+        scan.close();
+        t.commit();
+        assertEquals(rows, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
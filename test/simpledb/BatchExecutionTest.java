@@ -0,0 +1,216 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.BatchAggregate;
+import simpledb.execution.BatchFilter;
+import simpledb.execution.BatchHashJoin;
+import simpledb.execution.BatchIterator;
+import simpledb.execution.BatchProject;
+import simpledb.execution.BatchScan;
+import simpledb.execution.Batched;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TupleBatch;
+import simpledb.execution.Unbatched;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchExecutionTest extends SimpleDbTestBase {
+
+    /** The tuples of an operator as strings, sorted. */
+    private static List<String> run(OpIterator it) throws Exception {
+        List<String> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) tuples.add(it.next().toString());
+        it.close();
+        Collections.sort(tuples);
+        return tuples;
+    }
+
+    /**
+     * Unit test for BatchScan, BatchFilter and BatchProject: the same rows as
+     * SeqScan, Filter and Project, for every operator and batch boundaries
+     * inside pages, with the predicate pushed into the scan or not
+     */
+    @Test public void scanFilterProject() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(6, 20000, null, null);
+        TransactionId tid = new TransactionId();
+        List<Integer> fields = Arrays.asList(4, 0, 3);
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE};
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(3, op, new IntField(30000));
+            List<String> expected = run(new Project(fields, types, new Filter(p, new SeqScan(tid, f.getId(), "t"))));
+            for (int capacity : new int[] {TupleBatch.DEFAULT_CAPACITY, 100}) {
+                BatchIterator pushedDown = new BatchProject(fields, types,
+                        new BatchFilter(p, new BatchScan(tid, f.getId(), "t", capacity)));
+                assertEquals(expected, run(new Unbatched(pushedDown)));
+                // a child that is not a scan is filtered through the selection vector
+                BatchIterator selected = new BatchProject(fields, types,
+                        new BatchFilter(p, new Batched(new SeqScan(tid, f.getId(), "t"), capacity)));
+                assertEquals(expected, run(new Unbatched(selected)));
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for the adapters: an operator run through Batched and
+     * Unbatched returns the same tuples, and rewinds
+     */
+    @Test public void adapters() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 2000, null, null);
+        TransactionId tid = new TransactionId();
+        List<String> expected = run(new SeqScan(tid, f.getId(), "t"));
+        OpIterator it = new Unbatched(new Batched(new SeqScan(tid, f.getId(), "t"), 7));
+        assertEquals(expected, run(it));
+        it.open();
+        while (it.hasNext()) it.next();
+        it.rewind();
+        List<String> again = new ArrayList<>();
+        while (it.hasNext()) again.add(it.next().toString());
+        it.close();
+        Collections.sort(again);
+        assertEquals(expected, again);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BatchHashJoin: the same rows as HashEquiJoin, with many
+     * duplicate keys and output batches smaller than one key's matches
+     */
+    @Test public void hashJoin() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(3, 3000, 200, null, null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 5000, 200, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        List<String> expected = run(new HashEquiJoin(p, new SeqScan(tid, left.getId(), "l"),
+                new SeqScan(tid, right.getId(), "r")));
+        assertTrue(expected.size() > 10000);
+        for (int capacity : new int[] {TupleBatch.DEFAULT_CAPACITY, 7}) {
+            BatchIterator join = new BatchHashJoin(p, new BatchScan(tid, left.getId(), "l", capacity),
+                    new BatchScan(tid, right.getId(), "r", capacity), capacity);
+            assertEquals(expected, run(new Unbatched(join)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BatchAggregate: the same rows as Aggregate for every
+     * operator, with and without grouping
+     */
+    @Test public void aggregate() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, null);
+        TransactionId tid = new TransactionId();
+        Aggregator.Op[] ops = {Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.COUNT};
+        for (Aggregator.Op op : ops) {
+            for (int gfield : new int[] {Aggregator.NO_GROUPING, 0}) {
+                List<String> expected = run(new Aggregate(new SeqScan(tid, f.getId(), "t"), 1, gfield, op));
+                BatchIterator agg = new BatchAggregate(new BatchScan(tid, f.getId(), "t"), 1, gfield, op, 100);
+                assertEquals(op + " grouped by " + gfield, expected, run(new Unbatched(agg)));
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Unit test for BatchAggregate: counts grouped by a string column */
+    @Test public void aggregateStrings() throws Exception {
+        Object[] rows = {1, "a", 2, "b", 3, "a", 4, "c", 5, "a", 6, "b"};
+        List<String> expected = run(new Aggregate(TestUtil.createTupleList(2, rows), 0, 1, Aggregator.Op.COUNT));
+        BatchIterator agg = new BatchAggregate(new Batched(TestUtil.createTupleList(2, rows), 4), 0, 1,
+                Aggregator.Op.COUNT);
+        assertEquals(expected, run(new Unbatched(agg)));
+        assertEquals(3, expected.size());
+    }
+
+    /** Run a plan to the end and return the number of tuples. */
+    private static int drain(OpIterator it) throws Exception {
+        int count = 0;
+        it.open();
+        for (; it.hasNext(); it.next()) count++;
+        it.close();
+        return count;
+    }
+
+    /**
+     * The join of QueryTest, "SELECT * FROM emp,dept,hobbies,hobby WHERE
+     * emp.c1 = dept.c0 AND hobbies.c0 = emp.c2 AND hobbies.c1 = hobby.c0 AND
+     * emp.c3 < 1000", planned by hand.
+     */
+    private static OpIterator queryTestJoin(TransactionId tid, boolean batch, int emp, int dept, int hobbies,
+                                            int hobby) {
+        Predicate filter = new Predicate(3, Predicate.Op.LESS_THAN, new IntField(1000));
+        JoinPredicate empDept = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        JoinPredicate empHobbies = new JoinPredicate(2, Predicate.Op.EQUALS, 0);
+        JoinPredicate hobbiesHobby = new JoinPredicate(10, Predicate.Op.EQUALS, 0);
+        if (!batch) {
+            OpIterator plan = new Filter(filter, new SeqScan(tid, emp, "emp"));
+            plan = new HashEquiJoin(empDept, plan, new SeqScan(tid, dept, "dept"));
+            plan = new HashEquiJoin(empHobbies, plan, new SeqScan(tid, hobbies, "hobbies"));
+            return new HashEquiJoin(hobbiesHobby, plan, new SeqScan(tid, hobby, "hobby"));
+        }
+        BatchIterator plan = new BatchFilter(filter, new BatchScan(tid, emp, "emp"));
+        plan = new BatchHashJoin(empDept, plan, new BatchScan(tid, dept, "dept"));
+        plan = new BatchHashJoin(empHobbies, plan, new BatchScan(tid, hobbies, "hobbies"));
+        return new Unbatched(new BatchHashJoin(hobbiesHobby, plan, new BatchScan(tid, hobby, "hobby")));
+    }
+
+    /** "SELECT emp.c1, SUM(emp.c0) FROM emp WHERE emp.c3 < 30000 GROUP BY emp.c1" */
+    private static OpIterator groupedSum(TransactionId tid, boolean batch, int emp) {
+        Predicate filter = new Predicate(3, Predicate.Op.LESS_THAN, new IntField(30000));
+        if (!batch) return new Aggregate(new Filter(filter, new SeqScan(tid, emp, "emp")), 0, 1, Aggregator.Op.SUM);
+        return new Unbatched(new BatchAggregate(new BatchFilter(filter, new BatchScan(tid, emp, "emp")), 0, 1,
+                Aggregator.Op.SUM));
+    }
+
+    /**
+     * Unit test for batch pipelines: the join and grouped sum on the tables
+     * of QueryTest give the same results as the tuple-at-a-time engine
+     */
+    @Test public void queryTestQueries() throws Exception {
+        HeapFile emp = SystemTestUtil.createRandomHeapFile(6, 5000, 2000, null, null, "c");
+        HeapFile dept = SystemTestUtil.createRandomHeapFile(3, 100, 2000, null, null, "c");
+        HeapFile hobby = SystemTestUtil.createRandomHeapFile(6, 100, 2000, null, null, "c");
+        HeapFile hobbies = SystemTestUtil.createRandomHeapFile(2, 10000, 2000, null, null, "c");
+        TransactionId tid = new TransactionId();
+        int[][] results = new int[2][];
+        for (boolean batch : new boolean[] {false, true}) {
+            results[batch ? 1 : 0] = new int[] {
+                    drain(queryTestJoin(tid, batch, emp.getId(), dept.getId(), hobbies.getId(), hobby.getId())),
+                    drain(groupedSum(tid, batch, emp.getId()))};
+        }
+        assertTrue(results[0][0] > 0);
+        assertEquals(results[0][0], results[1][0]);
+        assertEquals(results[0][1], results[1][1]);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
@@ -141,6 +141,33 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.transactionComplete() leaving the pages of
+     * other transactions alone
+     */
+    @Test public void completeTouchesOnlyOwnPages() throws Exception {
+        TransactionId other = new TransactionId();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*2, null, null);
+        BufferPool bp = Database.getBufferPool();
+        HeapPage mine = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        HeapPage theirs = (HeapPage) bp.getPage(other, new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        mine.markDirty(true, tid);
+        theirs.markDirty(true, other);
+        byte[] theirBefore = theirs.getBeforeImage().getPageData();
+        theirs.deleteTuple(theirs.iterator().next());
+
+        bp.transactionComplete(tid);
+        assertNull(mine.isDirty());
+        assertEquals(other, theirs.isDirty());
+        assertArrayEquals(theirBefore, theirs.getBeforeImage().getPageData());
+
+        bp.transactionComplete(other, false);
+        assertFalse(bp.holdsLock(other, theirs.getId()));
+        HeapPage reread = (HeapPage) bp.getPage(tid, theirs.getId(), Permissions.READ_ONLY);
+        assertNotSame(theirs, reread);
+        assertEquals(0, reread.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,125 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 64;
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    private static void checkSkipsUnevictable(EvictionPolicy policy) {
+        for (int i = 0; i < 4; i++) policy.recordInsert(pid(i));
+        // only page 2 is clean
+        assertEquals(pid(2), policy.evict(p -> p.equals(pid(2))));
+        // nothing evictable left
+        assertNull(policy.evict(p -> false));
+        policy.recordRemove(pid(0));
+        Set<PageId> evicted = new HashSet<>();
+        PageId p;
+        while ((p = policy.evict(x -> true)) != null) evicted.add(p);
+        assertEquals(2, evicted.size());
+        assertTrue(evicted.contains(pid(1)));
+        assertTrue(evicted.contains(pid(3)));
+    }
+
+    /**
+     * Every policy must skip pages that cannot be evicted and forget removed pages
+     */
+    @Test public void skipsUnevictable() {
+        checkSkipsUnevictable(new LRUEvictionPolicy(4));
+        checkSkipsUnevictable(new ClockEvictionPolicy(4));
+        checkSkipsUnevictable(new TwoQueueEvictionPolicy(4));
+    }
+
+    /**
+     * CLOCK gives referenced pages a second chance
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy clock = new ClockEvictionPolicy(3);
+        clock.recordInsert(pid(0));
+        clock.recordInsert(pid(1));
+        clock.recordInsert(pid(2));
+        clock.recordAccess(pid(0));
+        assertEquals(pid(1), clock.evict(p -> true));
+        assertEquals(pid(2), clock.evict(p -> true));
+        assertEquals(pid(0), clock.evict(p -> true));
+        assertNull(clock.evict(p -> true));
+    }
+
+    /**
+     * 2Q keeps pages that were re-referenced after leaving A1in
+     */
+    @Test public void twoQueuePromotesGhostHits() {
+        EvictionPolicy twoQ = new TwoQueueEvictionPolicy(4);
+        twoQ.recordInsert(pid(0));
+        assertEquals(pid(0), twoQ.evict(p -> true));
+        // page 0 comes back while remembered in A1out and goes to Am
+        twoQ.recordInsert(pid(0));
+        for (int i = 1; i <= 3; i++) twoQ.recordInsert(pid(i));
+        // A1in is drained down to its share of the pool before Am is touched
+        assertEquals(pid(1), twoQ.evict(p -> true));
+        assertEquals(pid(2), twoQ.evict(p -> true));
+        assertEquals(pid(0), twoQ.evict(p -> true));
+        assertEquals(pid(3), twoQ.evict(p -> true));
+    }
+
+    /**
+     * Replay a trace of point lookups on a hot set mixed with sequential scans
+     * of a table four times the size of the pool: 2Q keeps more of the hot
+     * set than LRU.
+     */
+    @Test public void hitRatioScansAndLookups() {
+        double lru = replay(LRUEvictionPolicy::new);
+        double twoQ = replay(TwoQueueEvictionPolicy::new);
+        // 2Q is the scan resistant one
+        assertTrue(twoQ > lru);
+    }
+
+    private static double replay(IntFunction<EvictionPolicy> factory) {
+        EvictionPolicy policy = factory.apply(POOL_PAGES);
+        Set<PageId> resident = new HashSet<>();
+        Random rand = new Random(42);
+        int hotPages = POOL_PAGES / 2;
+        int scanPages = POOL_PAGES * 4;
+        int scanPos = 0;
+        long hits = 0, accesses = 0;
+        for (int i = 0; i < 200000; i++) {
+            // hot pages live in a separate table from the scanned one
+            PageId p = (i % 3 == 0)
+                    ? new HeapPageId(2, rand.nextInt(hotPages))
+                    : new HeapPageId(3, scanPos++ % scanPages);
+            accesses++;
+            if (resident.contains(p)) {
+                hits++;
+                policy.recordAccess(p);
+                continue;
+            }
+            if (resident.size() >= POOL_PAGES) resident.remove(policy.evict(x -> true));
+            resident.add(p);
+            policy.recordInsert(p);
+        }
+        return (double) hits / accesses;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static LogFile newLog() throws IOException {
+        File f = File.createTempFile("grouplog", ".log");
+        f.deleteOnExit();
+        return new LogFile(f);
+    }
+
+    /**
+     * Run committers that each begin and commit transactions back to back
+     * for a while, and return {commits, forces}.
+     */
+    private static long[] commitLoop(LogFile log, int committers, long millis) throws Exception {
+        AtomicLong commits = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread[] threads = new Thread[committers];
+        for (int i = 0; i < committers; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                        commits.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            });
+        }
+        long forcesBefore = log.getForceCount();
+        for (Thread t : threads) t.start();
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread t : threads) t.join();
+        if (error.get() != null) throw error.get();
+        return new long[] {commits.get(), log.getForceCount() - forcesBefore};
+    }
+
+    /**
+     * Unit test for LogFile.logCommit() returning only once its record is forced
+     */
+    @Test public void commitWaitsForForce() throws Exception {
+        LogFile log = newLog();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long forces = log.getForceCount();
+        log.logCommit(tid);
+        assertEquals(forces + 1, log.getForceCount());
+        // nothing new to force
+        log.force();
+        assertEquals(forces + 1, log.getForceCount());
+    }
+
+    /**
+     * Unit test for LogFile.setGroupCommitWindow(): a window lets concurrent
+     * committers share one force
+     */
+    @Test public void windowBatchesCommits() throws Exception {
+        LogFile log = newLog();
+        log.setGroupCommitWindow(20, TimeUnit.MILLISECONDS);
+        long[] result = commitLoop(log, 8, 500);
+        assertTrue(result[0] > result[1] * 4);
+    }
+
+    /**
+     * Unit test for LogFile.logCommit(): with many concurrent committers and
+     * no window, the log is never forced more often than transactions commit
+     */
+    @Test public void manyCommitters() throws Exception {
+        long[] result = commitLoop(newLog(), 64, 500);
+        assertTrue(result[0] > 0);
+        assertTrue(result[0] >= result[1]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
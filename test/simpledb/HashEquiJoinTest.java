@@ -0,0 +1,163 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    /** Passes its child's tuples through and counts them. */
+    private static class CountingScan extends Operator {
+        private static final long serialVersionUID = 1L;
+        private final OpIterator child;
+        int read;
+
+        CountingScan(OpIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!child.hasNext()) return null;
+            read++;
+            return child.next();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[]{child};
+        }
+
+        public void setChildren(OpIterator[] children) {
+        }
+    }
+
+    /** The tuples of an operator as strings, sorted. */
+    private static List<String> run(OpIterator it) throws Exception {
+        List<String> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) tuples.add(it.next().toString());
+        it.close();
+        Collections.sort(tuples);
+        return tuples;
+    }
+
+    /**
+     * Unit test for HashEquiJoin: a left side 50 times the memory budget is
+     * split into partitions that give the same tuples as an in-memory join,
+     * and the right side is read once
+     */
+    @Test public void partitionsLargeLeftSide() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 5000, 3000, null, null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 5000, 3000, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        List<String> expected = run(new HashEquiJoin(p, new SeqScan(tid, left.getId(), "l"),
+                new SeqScan(tid, right.getId(), "r")));
+        assertTrue(expected.size() > 1000);
+
+        CountingScan rightScan = new CountingScan(new SeqScan(tid, right.getId(), "r"));
+        assertEquals(expected, run(new HashEquiJoin(p, new SeqScan(tid, left.getId(), "l"), rightScan, 100)));
+        assertEquals(5000, rightScan.read);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for HashEquiJoin: keys too frequent for any partition to fit
+     * are joined a chunk of the left side at a time
+     */
+    @Test public void skewedKeys() throws Exception {
+        Map<Integer, Integer> sameKey = new HashMap<>();
+        sameKey.put(0, 7);
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 1000, sameKey, null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 60, sameKey, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        List<String> expected = run(new HashEquiJoin(p, new SeqScan(tid, left.getId(), "l"),
+                new SeqScan(tid, right.getId(), "r")));
+        assertEquals(60000, expected.size());
+        assertEquals(expected, run(new HashEquiJoin(p, new SeqScan(tid, left.getId(), "l"),
+                new SeqScan(tid, right.getId(), "r"), 64)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for HashEquiJoin.rewind(): a join that spilled starts again
+     * from the beginning
+     */
+    @Test public void rewindAfterSpilling() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        OpIterator join = new HashEquiJoin(p, new SeqScan(tid, left.getId(), "l"),
+                new SeqScan(tid, right.getId(), "r"), 50);
+        List<String> expected = run(join);
+        join.open();
+        for (int i = 0; i < 100; i++) join.next();
+        join.rewind();
+        List<String> again = new ArrayList<>();
+        while (join.hasNext()) again.add(join.next().toString());
+        join.close();
+        Collections.sort(again);
+        assertEquals(expected, again);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for HashEquiJoin: a budget of no tuples is rejected
+     */
+    @Test(expected = IllegalArgumentException.class) public void emptyBudget() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        TransactionId tid = new TransactionId();
+        new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), new SeqScan(tid, f.getId(), "l"),
+                new SeqScan(tid, f.getId(), "r"), 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -90,6 +90,65 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /** Insert tuples into f and commit, one transaction per batch of 10000 tuples. */
+    private static void fill(HeapFile f, int tuples) throws Exception {
+        for (int done = 0; done < tuples; ) {
+            TransactionId tid = new TransactionId();
+            for (int end = Math.min(tuples, done + 10000); done < end; done++) {
+                Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(done, 2));
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): a slot freed by a delete is
+     * reused before the file grows
+     */
+    @Test public void insertReusesFreedSlot() throws Exception {
+        fill(empty, 504 * 3);
+        assertEquals(3, empty.numPages());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().deleteTuple(tid, t);
+
+        Tuple inserted = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), inserted);
+        assertEquals(0, inserted.getRecordId().getPageId().getPageNumber());
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): a reopened file still knows
+     * which pages are full, so an insert reads no full pages
+     */
+    @Test public void freeSpaceSurvivesReopen() throws Exception {
+        fill(empty, 504 * 10 + 1);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        long misses = Database.getBufferPool().getMissCount();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, reopened.getId(), t);
+        assertEquals(10, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, Database.getBufferPool().getMissCount() - misses);
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): a file many times the size of
+     * the buffer pool fills every page before it grows
+     */
+    @Test public void fillsEveryPage() throws Exception {
+        Database.resetBufferPool(100);
+        for (int i = 0; i < 6; i++) fill(empty, 5000);
+        assertEquals((30000 + 503) / 504, empty.numPages());
+    }
+
     /**
      * JUnit suite target
      */
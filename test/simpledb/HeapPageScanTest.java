@@ -0,0 +1,94 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeapPageScanTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for HeapPage.iterator(Predicate): the same tuples as
+     * filtering the full iterator
+     */
+    @Test public void predicateIterator() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 1000, null, new ArrayList<>());
+        HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), 0));
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new IntField(500));
+            List<Tuple> expected = new ArrayList<>();
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+                Tuple t = it.next();
+                if (p.filter(t)) expected.add(t);
+            }
+            Iterator<Tuple> it = page.iterator(p);
+            for (Tuple t : expected) {
+                assertTrue(it.hasNext());
+                Tuple actual = it.next();
+                assertEquals(t.getRecordId(), actual.getRecordId());
+                assertTrue(TestUtil.compareTuples(t, actual));
+            }
+            assertFalse(it.hasNext());
+        }
+    }
+
+    /** Drain an operator and return its number of tuples. */
+    private static int count(OpIterator it) throws Exception {
+        it.open();
+        int count = 0;
+        for (; it.hasNext(); it.next()) count++;
+        it.close();
+        return count;
+    }
+
+    /**
+     * Unit test for Filter over SeqScan: a selective filter reading the
+     * table into an empty buffer pool finds the same tuples as a full scan,
+     * cold or cached
+     */
+    @Test public void filteredScan() throws Exception {
+        int rows = 20000;
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, 10000, null, tuples);
+        int expected = 0;
+        for (List<Integer> t : tuples) if (t.get(1) < 100) expected++;
+
+        Database.resetBufferPool(f.numPages() + 10);
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100));
+        assertEquals(expected, count(new Filter(p, new SeqScan(tid, f.getId(), ""))));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(f.numPages() + 10);
+        tid = new TransactionId();
+        assertEquals(rows, count(new SeqScan(tid, f.getId(), "")));
+        assertEquals(rows, count(new SeqScan(tid, f.getId(), "")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapPageScanTest.class);
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.util.IntHashTable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+    private static final int BUILD_ROWS = 100000;
+
+    /**
+     * Unit test for IntHashTable.get() / put(), against a HashMap, with
+     * negative and zero keys and enough keys to grow several times
+     */
+    @Test public void getPut() {
+        IntHashTable table = new IntHashTable(4);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(23);
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(50000) - 25000;
+            Integer previous = expected.put(key, i);
+            assertEquals(previous == null ? IntHashTable.NONE : previous, table.put(key, i));
+        }
+        table.put(0, 7);
+        expected.put(0, 7);
+        table.put(Integer.MIN_VALUE, 8);
+        expected.put(Integer.MIN_VALUE, 8);
+        assertEquals(expected.size(), table.size());
+        for (int key = -25000; key < 25000; key++)
+            assertEquals(expected.getOrDefault(key, IntHashTable.NONE).intValue(), table.get(key));
+        assertEquals(8, table.get(Integer.MIN_VALUE));
+        assertEquals(IntHashTable.NONE, table.get(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Unit test for IntHashTable.put(): values must not be negative
+     */
+    @Test(expected = IllegalArgumentException.class) public void negativeValue() {
+        new IntHashTable().put(1, IntHashTable.NONE);
+    }
+
+    /**
+     * Unit test for IntHashTable.clear()
+     */
+    @Test public void clear() {
+        IntHashTable table = new IntHashTable();
+        for (int i = 0; i < 1000; i++) table.put(i, i);
+        long bytes = table.sizeInBytes();
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(bytes, table.sizeInBytes());
+        for (int i = 0; i < 1000; i++) assertEquals(IntHashTable.NONE, table.get(i));
+        table.put(5, 1);
+        assertEquals(1, table.get(5));
+    }
+
+    /**
+     * Unit test for IntHashTable.put() building row chains, as HashEquiJoin
+     * keeps its build side: every row of a key is reached from its head
+     */
+    @Test public void rowChains() {
+        Random random = new Random(10);
+        int[] keys = new int[BUILD_ROWS];
+        for (int i = 0; i < keys.length; i++) keys[i] = random.nextInt(BUILD_ROWS / 4);
+        int[] next = new int[BUILD_ROWS];
+        IntHashTable table = new IntHashTable();
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int row = 0; row < keys.length; row++) {
+            next[row] = table.put(keys[row], row);
+            counts.merge(keys[row], 1, Integer::sum);
+        }
+        assertEquals(counts.size(), table.size());
+        for (int key = -1; key <= BUILD_ROWS / 4; key++) {
+            int n = 0;
+            for (int row = table.get(key); row >= 0; row = next[row]) {
+                assertEquals(key, keys[row]);
+                n++;
+            }
+            assertEquals(counts.getOrDefault(key, 0).intValue(), n);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
@@ -0,0 +1,322 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DeadlockException;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.PageLock;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+
+    private static final int WAIT = 5000;
+
+    private LockManager lm;
+    private PageId p0, p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /** Start a thread that asks for a lock and counts the latch down once it has it */
+    private Thread lockAsync(PageId pid, TransactionId tid, int type, CountDownLatch granted) {
+        return lockAsync(pid, tid, type, granted, new AtomicReference<>());
+    }
+
+    /** Like lockAsync, but a deadlock ends up in error and the transaction is aborted */
+    private Thread lockAsync(PageId pid, TransactionId tid, int type, CountDownLatch granted,
+                             AtomicReference<Exception> error) {
+        Thread t = new Thread(() -> {
+            try {
+                if (lm.tryLock(pid, tid, type, WAIT)) granted.countDown();
+            } catch (DeadlockException e) {
+                error.set(e);
+                lm.releaseLockByTxn(tid);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static void waitUntilBlocked(Thread t) throws InterruptedException {
+        while (t.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue(t.isAlive());
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Unit test for LockManager.releaseLock() waking up a waiter
+     */
+    @Test public void releaseWakesWaiter() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        assertTrue(lm.acquireLock(p0, t1, PageLock.EXCLUSIVE));
+        CountDownLatch granted = new CountDownLatch(1);
+        Thread t = lockAsync(p0, t2, PageLock.SHARE, granted);
+        waitUntilBlocked(t);
+        assertEquals(1, granted.getCount());
+
+        lm.releaseLock(p0, t1);
+        assertTrue(granted.await(WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(PageLock.SHARE, lm.isHold(p0, t2));
+        assertEquals(-1, lm.isHold(p0, t1));
+    }
+
+    /**
+     * A waiting writer blocks later readers, and the readers queued behind it
+     * are granted together once it is done
+     */
+    @Test public void fifoWithSharedBatching() throws Exception {
+        TransactionId reader = new TransactionId(), writer = new TransactionId();
+        assertTrue(lm.acquireLock(p0, reader, PageLock.SHARE));
+
+        CountDownLatch writerGranted = new CountDownLatch(1);
+        Thread w = lockAsync(p0, writer, PageLock.EXCLUSIVE, writerGranted);
+        waitUntilBlocked(w);
+
+        // a new reader must not overtake the waiting writer
+        assertFalse(lm.acquireLock(p0, new TransactionId(), PageLock.SHARE));
+        CountDownLatch readersGranted = new CountDownLatch(3);
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = lockAsync(p0, new TransactionId(), PageLock.SHARE, readersGranted);
+            waitUntilBlocked(readers[i]);
+        }
+
+        lm.releaseLock(p0, reader);
+        assertTrue(writerGranted.await(WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(3, readersGranted.getCount());
+
+        lm.releaseLock(p0, writer);
+        assertTrue(readersGranted.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Unit test for upgrading a shared lock, which goes ahead of other waiters
+     */
+    @Test public void upgradeJumpsQueue() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId(), t3 = new TransactionId();
+        assertTrue(lm.acquireLock(p0, t1, PageLock.SHARE));
+        assertTrue(lm.acquireLock(p0, t2, PageLock.SHARE));
+
+        CountDownLatch waiterGranted = new CountDownLatch(1);
+        Thread w = lockAsync(p0, t3, PageLock.EXCLUSIVE, waiterGranted);
+        waitUntilBlocked(w);
+        CountDownLatch upgraded = new CountDownLatch(1);
+        Thread u = lockAsync(p0, t1, PageLock.EXCLUSIVE, upgraded);
+        waitUntilBlocked(u);
+
+        lm.releaseLock(p0, t2);
+        assertTrue(upgraded.await(WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(PageLock.EXCLUSIVE, lm.isHold(p0, t1));
+        assertEquals(1, waiterGranted.getCount());
+        lm.releaseLockByTxn(t1);
+        assertTrue(waiterGranted.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Unit test for a request timing out without leaving anything behind
+     */
+    @Test public void timeout() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        assertTrue(lm.acquireLock(p0, t1, PageLock.EXCLUSIVE));
+        assertFalse(lm.tryLock(p0, t2, PageLock.SHARE, 50));
+        lm.releaseLock(p0, t1);
+        assertTrue(lm.acquireLock(p0, t2, PageLock.EXCLUSIVE));
+    }
+
+    /**
+     * Unit test for a deadlock where the requester is the youngest transaction
+     * on the cycle and gets the DeadlockException itself
+     */
+    @Test public void deadlockRequesterIsVictim() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        assertTrue(lm.acquireLock(p0, t1, PageLock.EXCLUSIVE));
+        assertTrue(lm.acquireLock(p1, t2, PageLock.SHARE));
+        CountDownLatch granted = new CountDownLatch(1);
+        Thread t = lockAsync(p1, t1, PageLock.EXCLUSIVE, granted);
+        waitUntilBlocked(t);
+
+        try {
+            lm.tryLock(p0, t2, PageLock.SHARE, WAIT);
+            fail("expected a deadlock");
+        } catch (DeadlockException expected) {
+        }
+        lm.releaseLockByTxn(t2);
+        assertTrue(granted.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Unit test for a deadlock closed by an older transaction, which makes a
+     * waiting transaction the victim
+     */
+    @Test public void deadlockWaiterIsVictim() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        assertTrue(lm.acquireLock(p0, t1, PageLock.SHARE));
+        assertTrue(lm.acquireLock(p1, t2, PageLock.SHARE));
+        CountDownLatch granted = new CountDownLatch(1);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread t = lockAsync(p0, t2, PageLock.EXCLUSIVE, granted, error);
+        waitUntilBlocked(t);
+
+        // t2 is aborted and releases p1
+        assertTrue(lm.tryLock(p1, t1, PageLock.EXCLUSIVE, WAIT));
+        t.join();
+        assertTrue(error.get() instanceof DeadlockException);
+        assertEquals(1, granted.getCount());
+    }
+
+    /**
+     * Unit test for VictimPolicy.FEWEST_LOCKS
+     */
+    @Test public void deadlockFewestLocks() throws Exception {
+        lm.setVictimPolicy(LockManager.VictimPolicy.FEWEST_LOCKS);
+        TransactionId older = new TransactionId(), younger = new TransactionId();
+        assertTrue(lm.acquireLock(p0, older, PageLock.EXCLUSIVE));
+        assertTrue(lm.acquireLock(p1, younger, PageLock.EXCLUSIVE));
+        for (int i = 2; i < 5; i++) assertTrue(lm.acquireLock(new HeapPageId(1, i), younger, PageLock.SHARE));
+
+        CountDownLatch granted = new CountDownLatch(1);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread t = lockAsync(p1, older, PageLock.SHARE, granted, error);
+        waitUntilBlocked(t);
+        // the older transaction holds fewer locks, so it is the one to go
+        assertTrue(lm.tryLock(p0, younger, PageLock.SHARE, WAIT));
+        t.join();
+        assertTrue(error.get() instanceof DeadlockException);
+    }
+
+    /**
+     * Unit test for LockManager.tryLock() under contention: threads run short
+     * transactions that lock a few pages out of a small hot set, in page
+     * order so there are no deadlocks, each waiting up to 1-2.5 s. None of
+     * them times out.
+     */
+    @Test public void contentionWithoutAborts() throws Exception {
+        final int threads = 8, pages = 8, locksPerTxn = 3;
+        final long millis = 500;
+        AtomicLong commits = new AtomicLong(), aborts = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            workers[i] = new Thread(() -> {
+                Random rand = new Random(seed);
+                while (!stop.get()) {
+                    TransactionId tid = new TransactionId();
+                    int first = rand.nextInt(pages - locksPerTxn + 1);
+                    boolean ok = true;
+                    for (int p = first; p < first + locksPerTxn && ok; p++) {
+                        int type = rand.nextInt(10) < 7 ? PageLock.SHARE : PageLock.EXCLUSIVE;
+                        try {
+                            ok = lm.tryLock(new HeapPageId(1, p), tid, type, 1000 + rand.nextInt(1500));
+                        } catch (DeadlockException e) {
+                            ok = false;
+                        }
+                    }
+                    lm.releaseLockByTxn(tid);
+                    (ok ? commits : aborts).incrementAndGet();
+                }
+            });
+            workers[i].start();
+        }
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread t : workers) t.join();
+
+        assertTrue(commits.get() > 0);
+        assertEquals(0, aborts.get());
+    }
+
+    /**
+     * Unit test for LockManager.releaseLockByTxn(): a transaction's locks
+     * are released while other transactions keep theirs, including shared
+     * locks on the same pages
+     */
+    @Test public void releaseByTxnKeepsOthers() throws Exception {
+        final int othersCount = 100, locksPerOther = 10;
+        TransactionId[] others = new TransactionId[othersCount];
+        for (int i = 0; i < othersCount; i++) {
+            others[i] = new TransactionId();
+            for (int p = 0; p < locksPerOther; p++)
+                assertTrue(lm.acquireLock(new HeapPageId(2, i * locksPerOther + p), others[i], PageLock.SHARE));
+        }
+        TransactionId tid = new TransactionId();
+        for (int p = 0; p < 4; p++) {
+            assertTrue(lm.acquireLock(new HeapPageId(1, p), tid, PageLock.EXCLUSIVE));
+            assertTrue(lm.acquireLock(new HeapPageId(2, p), tid, PageLock.SHARE));
+        }
+        lm.releaseLockByTxn(tid);
+        for (int p = 0; p < 4; p++) {
+            assertEquals(-1, lm.isHold(new HeapPageId(1, p), tid));
+            assertEquals(-1, lm.isHold(new HeapPageId(2, p), tid));
+        }
+        for (int i = 0; i < othersCount; i++) {
+            for (int p = 0; p < locksPerOther; p++)
+                assertEquals(PageLock.SHARE, lm.isHold(new HeapPageId(2, i * locksPerOther + p), others[i]));
+        }
+        assertTrue(lm.acquireLock(new HeapPageId(1, 0), new TransactionId(), PageLock.EXCLUSIVE));
+    }
+
+    /**
+     * Unit test for BufferPool.getPage(): a transaction interrupted while it
+     * waits for a lock is aborted and does not get the page
+     */
+    @Test public void interruptedGetPage() throws Exception {
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        PageId pid = new HeapPageId(f.getId(), 0);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId holder = new TransactionId(), waiter = new TransactionId();
+        bp.getPage(holder, pid, Permissions.READ_WRITE);
+
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                result.set(bp.getPage(waiter, pid, Permissions.READ_ONLY));
+            } catch (Exception e) {
+                result.set(e);
+            }
+        });
+        t.start();
+        while (t.getState() != Thread.State.WAITING) {
+            assertTrue(t.isAlive());
+            Thread.sleep(1);
+        }
+        t.interrupt();
+        t.join(WAIT);
+        assertFalse(t.isAlive());
+        assertTrue(result.get() instanceof TransactionAbortedException);
+        assertFalse(bp.holdsLock(waiter, pid));
+        bp.transactionComplete(holder);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
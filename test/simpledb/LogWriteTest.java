@@ -0,0 +1,155 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class LogWriteTest extends SimpleDbTestBase {
+
+    private HeapPage before;
+    private HeapPage after;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        HeapPageId pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        after = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+    }
+
+    private static File newLogFile() throws IOException {
+        File f = File.createTempFile("writelog", ".log");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Unit test for LogFile.logWrite(): records are buffered and reach the
+     * file when the log is forced
+     */
+    @Test public void writesReachFileOnForce() throws Exception {
+        File f = newLogFile();
+        LogFile log = new LogFile(f);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        long buffered = f.length();
+        log.force();
+        assertTrue(f.length() > buffered);
+        assertTrue(f.length() > 2L * HeapPageReadTest.EXAMPLE_DATA.length);
+    }
+
+    /**
+     * Unit test for LogFile.logCheckpoint(): the records of a running
+     * transaction are read back and rewritten when the log is truncated
+     */
+    @Test public void checkpointKeepsUpdates() throws Exception {
+        File f = newLogFile();
+        LogFile log = new LogFile(f);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        log.logCheckpoint();
+        assertTrue(f.length() > 2L * HeapPageReadTest.EXAMPLE_DATA.length);
+        log.logWrite(tid, after, before);
+        log.logCommit(tid);
+        assertTrue(f.length() > 4L * HeapPageReadTest.EXAMPLE_DATA.length);
+    }
+
+    /**
+     * Insert a tuple into page and log the change, the way BufferPool does
+     * when the inserting transaction commits.
+     */
+    private static void logInsert(LogFile log, TransactionId tid, HeapPage page, int value) throws Exception {
+        HeapPage before = page.getBeforeImage();
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(value));
+        t.setField(1, new IntField(value));
+        page.insertTuple(t);
+        log.logWrite(tid, before, page);
+        page.setBeforeImage();
+    }
+
+    /**
+     * Unit test for LogFile.logWrite(): once a page's image is in the log,
+     * later changes to it are logged as deltas
+     */
+    @Test public void repeatedChangesAreDeltas() throws Exception {
+        File f = newLogFile();
+        LogFile log = new LogFile(f);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage page = new HeapPage(new HeapPageId(-1, 0), HeapPage.createEmptyPageData());
+
+        log.force();
+        long length = f.length();
+        logInsert(log, tid, page, 1);
+        log.force();
+        assertTrue(f.length() - length > 2L * BufferPool.getPageSize());
+
+        length = f.length();
+        logInsert(log, tid, page, 2);
+        log.force();
+        assertTrue(f.length() - length < 100);
+
+        // after a checkpoint the page's image is logged again
+        log.logCheckpoint();
+        length = f.length();
+        logInsert(log, tid, page, 3);
+        log.force();
+        assertTrue(f.length() - length > 2L * BufferPool.getPageSize());
+    }
+
+    /**
+     * Unit test for LogFile.logWrite(): updates that each insert one tuple
+     * into a run of pages log each page's image once and deltas after that
+     */
+    @Test public void manyUpdates() throws Exception {
+        int records = 20000;
+        File f = newLogFile();
+        LogFile log = new LogFile(f);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.force();
+        HeapPage page = null;
+        int pageNo = 0;
+        long length = f.length();
+        for (int i = 0; i < records; i++) {
+            if (page == null || page.getNumEmptySlots() == 0)
+                page = new HeapPage(new HeapPageId(-1, pageNo++), HeapPage.createEmptyPageData());
+            logInsert(log, tid, page, i);
+        }
+        log.force();
+        long images = (long) pageNo * 2 * BufferPool.getPageSize();
+        assertTrue(f.length() - length > images);
+        assertTrue(f.length() - length < images + 100L * records);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogWriteTest.class);
+    }
+}
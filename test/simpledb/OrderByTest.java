@@ -0,0 +1,140 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    /** The tuples of an operator as strings, in order. */
+    private static List<String> run(OpIterator it) throws Exception {
+        List<String> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) tuples.add(it.next().toString());
+        it.close();
+        return tuples;
+    }
+
+    private static int value(Tuple t, int field) {
+        return ((IntField) t.getField(field)).getValue();
+    }
+
+    /**
+     * Unit test for OrderBy: an input sorted in runs and merged comes out as
+     * the same tuples, in the same order, as one sorted in memory, with
+     * equal keys in input order
+     */
+    @Test public void externalMatchesInMemory() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 20000, 500, null, null);
+        TransactionId tid = new TransactionId();
+        int[] fields = {1};
+        boolean[] asc = {true};
+        List<String> expected = run(new OrderBy(fields, asc, new SeqScan(tid, f.getId(), "t"), 20000));
+        assertEquals(20000, expected.size());
+        assertEquals(expected, run(new OrderBy(fields, asc, new SeqScan(tid, f.getId(), "t"), 1000)));
+        // more runs than are merged at once
+        assertEquals(expected, run(new OrderBy(fields, asc, new SeqScan(tid, f.getId(), "t"), 50)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for OrderBy with several sort fields, ascending and
+     * descending
+     */
+    @Test public void multipleFields() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 10, null, null);
+        TransactionId tid = new TransactionId();
+        OpIterator sort = new OrderBy(new int[]{2, 0}, new boolean[]{true, false},
+                new SeqScan(tid, f.getId(), "t"), 300);
+        sort.open();
+        Tuple previous = null;
+        int n = 0;
+        while (sort.hasNext()) {
+            Tuple t = sort.next();
+            if (previous != null) {
+                assertTrue(value(previous, 2) <= value(t, 2));
+                if (value(previous, 2) == value(t, 2))
+                    assertTrue(value(previous, 0) >= value(t, 0));
+            }
+            previous = t;
+            n++;
+        }
+        sort.close();
+        assertEquals(5000, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for OrderBy.rewind(), in memory and from runs
+     */
+    @Test public void rewind() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        TransactionId tid = new TransactionId();
+        for (int budget : new int[]{3000, 100}) {
+            OpIterator sort = new OrderBy(new int[]{0}, new boolean[]{false},
+                    new SeqScan(tid, f.getId(), "t"), budget);
+            List<String> expected = run(sort);
+            sort.open();
+            for (int i = 0; i < 500; i++) sort.next();
+            sort.rewind();
+            List<String> again = new ArrayList<>();
+            while (sort.hasNext()) again.add(sort.next().toString());
+            sort.close();
+            assertEquals(expected, again);
+            // and it can be opened again
+            assertEquals(expected, run(sort));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for OrderBy.open(): opening a spilled sort again without
+     * closing it starts over instead of reading the old merge
+     */
+    @Test public void reopenWithoutClose() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        TransactionId tid = new TransactionId();
+        OpIterator sort = new OrderBy(new int[]{1}, new boolean[]{true},
+                new SeqScan(tid, f.getId(), "t"), 100);
+        List<String> expected = run(sort);
+        sort.open();
+        for (int i = 0; i < 300; i++) sort.next();
+        sort.open();
+        List<String> again = new ArrayList<>();
+        while (sort.hasNext()) again.add(sort.next().toString());
+        sort.close();
+        assertEquals(expected, again);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for OrderBy: a budget of no tuples is rejected
+     */
+    @Test(expected = IllegalArgumentException.class) public void emptyBudget() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        new OrderBy(new int[]{0}, new boolean[]{true}, new SeqScan(new TransactionId(), f.getId(), "t"), 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeEntry;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PageDataTest extends SimpleDbTestBase {
+
+    private int tableId;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() {
+        tableId = -1;
+        Database.getCatalog().addTable(new SkeletonFile(tableId, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int a, int b) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    private static List<String> contents(Iterator<?> it) {
+        List<String> contents = new ArrayList<>();
+        while (it.hasNext()) contents.add(it.next().toString());
+        return contents;
+    }
+
+    /** An internal page whose entries have keys 1 to n and children 1 to n+1. */
+    private BTreeInternalPage internalPage(int n) throws Exception {
+        BTreePageId pid = new BTreePageId(tableId, 1, BTreePageId.INTERNAL);
+        BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+        for (int i = 1; i <= n; i++) {
+            page.insertEntry(new BTreeEntry(new IntField(i),
+                    new BTreePageId(tableId, i, BTreePageId.LEAF), new BTreePageId(tableId, i + 1, BTreePageId.LEAF)));
+        }
+        return page;
+    }
+
+    /**
+     * Unit test for BTreeLeafPage.getPageData(): changes made to the page
+     * are in its data, and not in its before image
+     */
+    @Test public void leafPageChanges() throws Exception {
+        BTreePageId pid = new BTreePageId(tableId, 1, BTreePageId.LEAF);
+        BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        page.insertTuple(tuple(5, 5));
+        page.insertTuple(tuple(70000, 1));
+        page.deleteTuple(page.iterator().next());
+        page.setParentId(new BTreePageId(tableId, 7, BTreePageId.INTERNAL));
+        page.setLeftSiblingId(new BTreePageId(tableId, 8, BTreePageId.LEAF));
+        page.setRightSiblingId(new BTreePageId(tableId, 9, BTreePageId.LEAF));
+
+        BTreeLeafPage copy = new BTreeLeafPage(pid, page.getPageData(), 0);
+        assertEquals(contents(page.iterator()), contents(copy.iterator()));
+        assertEquals(page.getParentId(), copy.getParentId());
+        assertEquals(page.getLeftSiblingId(), copy.getLeftSiblingId());
+        assertEquals(page.getRightSiblingId(), copy.getRightSiblingId());
+        assertArrayEquals(BTreeLeafPageTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Unit test for BTreeInternalPage.getPageData(): changes made to the
+     * page are in its data, and not in its before image
+     */
+    @Test public void internalPageChanges() throws Exception {
+        BTreeInternalPage page = internalPage(50);
+        byte[] before = page.getPageData();
+        page.setBeforeImage();
+        Iterator<BTreeEntry> it = page.iterator();
+        page.deleteKeyAndRightChild(it.next());
+        BTreeEntry e = page.iterator().next();
+        page.deleteKeyAndLeftChild(e);
+        e = page.iterator().next();
+        e.setKey(new IntField(0));
+        page.updateEntry(e);
+
+        BTreeInternalPage copy = new BTreeInternalPage(page.getId(), page.getPageData(), 0);
+        assertEquals(contents(page.iterator()), contents(copy.iterator()));
+        assertEquals(page.getNumEntries(), copy.getNumEntries());
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+
+        // deleted entries leave nothing behind in the page data
+        page = internalPage(3);
+        Iterator<BTreeEntry> reverse = page.reverseIterator();
+        page.deleteKeyAndRightChild(reverse.next());
+        page.deleteKeyAndRightChild(reverse.next());
+        assertArrayEquals(internalPage(1).getPageData(), page.getPageData());
+    }
+
+    /**
+     * Unit test for getPageData() on full heap, leaf and internal pages: a
+     * page read back from its data has the same contents and data
+     */
+    @Test public void fullPagesRoundTrip() throws Exception {
+        HeapPage heapPage = new HeapPage(new HeapPageId(tableId, 0), HeapPage.createEmptyPageData());
+        while (heapPage.getNumEmptySlots() > 0) heapPage.insertTuple(tuple(heapPage.getNumEmptySlots(), 0));
+        HeapPage heapCopy = new HeapPage(heapPage.getId(), heapPage.getPageData());
+        assertEquals(contents(heapPage.iterator()), contents(heapCopy.iterator()));
+        assertArrayEquals(heapPage.getPageData(), heapCopy.getPageData());
+
+        BTreeLeafPage leafPage = new BTreeLeafPage(new BTreePageId(tableId, 1, BTreePageId.LEAF),
+                BTreeLeafPage.createEmptyPageData(), 0);
+        while (leafPage.getNumEmptySlots() > 0) leafPage.insertTuple(tuple(leafPage.getNumEmptySlots(), 0));
+        BTreeLeafPage leafCopy = new BTreeLeafPage(leafPage.getId(), leafPage.getPageData(), 0);
+        assertEquals(contents(leafPage.iterator()), contents(leafCopy.iterator()));
+        assertArrayEquals(leafPage.getPageData(), leafCopy.getPageData());
+
+        BTreeInternalPage internalPage = internalPage(internalPage(0).getMaxEntries());
+        BTreeInternalPage internalCopy = new BTreeInternalPage(internalPage.getId(), internalPage.getPageData(), 0);
+        assertEquals(contents(internalPage.iterator()), contents(internalCopy.iterator()));
+        assertArrayEquals(internalPage.getPageData(), internalCopy.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDataTest.class);
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.PagedFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PagedFileTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for HeapFile.setMemoryMapped(): mapped reads return the same
+     * pages, including pages appended after the file was mapped
+     */
+    @Test public void mappedReadsMatch() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, null, new ArrayList<>());
+        int numPages = f.numPages();
+        byte[][] expected = new byte[numPages][];
+        for (int i = 0; i < numPages; i++) {
+            expected[i] = f.readPage(new HeapPageId(f.getId(), i)).getPageData();
+        }
+        f.setMemoryMapped(true);
+        for (int i = numPages - 1; i >= 0; i--) {
+            assertArrayEquals(expected[i], f.readPage(new HeapPageId(f.getId(), i)).getPageData());
+        }
+
+        HeapPage appended = new HeapPage(new HeapPageId(f.getId(), numPages), HeapPage.createEmptyPageData());
+        appended.insertTuple(Utility.getHeapTuple(7, 2));
+        f.writePage(appended);
+        assertArrayEquals(appended.getPageData(), f.readPage(appended.getId()).getPageData());
+    }
+
+    /**
+     * Unit test for PagedFile.read(): short reads at the end of the file and
+     * -1 past it, mapped or not
+     */
+    @Test public void readAtEnd() throws Exception {
+        File file = File.createTempFile("paged", ".dat");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[] {1, 2, 3, 4, 5});
+        for (boolean mapped : new boolean[] {false, true}) {
+            PagedFile pf = new PagedFile(file);
+            pf.setMemoryMapped(mapped);
+            byte[] buf = new byte[4];
+            assertEquals(4, pf.read(1, buf));
+            assertArrayEquals(new byte[] {2, 3, 4, 5}, buf);
+            assertEquals(2, pf.read(3, buf));
+            assertEquals(-1, pf.read(5, buf));
+        }
+    }
+
+    /** Look up the given keys in f through a cold buffer pool and return the number of matches of each. */
+    private static List<Integer> lookups(BTreeFile f, int[] keys) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        List<Integer> matches = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            int n = 0;
+            DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(keys[i])));
+            it.open();
+            while (it.hasNext()) {
+                assertEquals(keys[i], ((IntField) it.next().getField(0)).getValue());
+                n++;
+            }
+            it.close();
+            matches.add(n);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return matches;
+    }
+
+    /**
+     * Unit test for BTreeFile.setMemoryMapped(): lookups on a tree larger
+     * than the buffer pool find the same tuples with mapped reads
+     */
+    @Test public void mappedLookupsMatch() throws Exception {
+        BTreeFile btree = BTreeUtility.createRandomBTreeFile(2, 50000, null, null, 0);
+        Random random = new Random(1);
+        int[] keys = new int[2000];
+        for (int i = 0; i < keys.length; i++) keys[i] = random.nextInt(BTreeUtility.MAX_RAND_VALUE);
+        List<Integer> expected = lookups(btree, keys);
+        btree.setMemoryMapped(true);
+        assertEquals(expected, lookups(btree, keys));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PagedFileTest.class);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ParallelIOTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 64;
+
+    /** A full page whose tuples are (page number, version). */
+    private static HeapPage page(HeapFile f, int pageNo, int version) throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(f.getId(), pageNo), HeapPage.createEmptyPageData());
+        while (page.getNumEmptySlots() > 0) page.insertTuple(Utility.getHeapTuple(new int[] {pageNo, version}));
+        return page;
+    }
+
+    private static HeapFile newHeapFile() throws Exception {
+        File file = File.createTempFile("parallel", ".dat");
+        file.deleteOnExit();
+        HeapFile f = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        for (int i = 0; i < PAGES; i++) f.writePage(page(f, i, 0));
+        return f;
+    }
+
+    /**
+     * Run the given action on each of the given threads until time is up,
+     * and return the number of times it ran.
+     */
+    private static long runThreads(int threads, long millis, Action action) throws Exception {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong count = new AtomicLong();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread th = new Thread(() -> {
+                Random random = new Random(thread);
+                try {
+                    while (!stop.get()) {
+                        action.run(thread, random);
+                        count.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            running.add(th);
+            th.start();
+        }
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread th : running) th.join();
+        if (error.get() instanceof AssertionError) throw (AssertionError) error.get();
+        if (error.get() != null) throw new RuntimeException(error.get());
+        return count.get();
+    }
+
+    private interface Action {
+        void run(int thread, Random random) throws Exception;
+    }
+
+    private static void checkPage(HeapFile f, int pageNo, int version) throws Exception {
+        HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), pageNo));
+        assertEquals(0, page.getNumEmptySlots());
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            Tuple t = it.next();
+            assertEquals(pageNo, ((IntField) t.getField(0)).getValue());
+            if (version >= 0) assertEquals(version, ((IntField) t.getField(1)).getValue());
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() and writePage() from many threads at
+     * once: every read returns the page asked for. As with the buffer pool, a
+     * page is never read while it is being written: writer w owns the pages
+     * numbered w mod WRITERS below PAGES / 4 and reads each one back after
+     * writing it, and the readers read the rest.
+     */
+    @Test public void parallelHeapReadsAndWrites() throws Exception {
+        final int writers = 2;
+        HeapFile f = newHeapFile();
+        for (boolean mapped : new boolean[] {false, true}) {
+            f.setMemoryMapped(mapped);
+            int[] versions = new int[writers];
+            runThreads(8, 1000, (thread, random) -> {
+                if (thread < writers) {
+                    int pageNo = thread + writers * random.nextInt(PAGES / 4 / writers);
+                    int version = ++versions[thread];
+                    f.writePage(page(f, pageNo, version));
+                    checkPage(f, pageNo, version);
+                } else {
+                    checkPage(f, PAGES / 4 + random.nextInt(PAGES - PAGES / 4), -1);
+                }
+            });
+        }
+    }
+
+    /**
+     * Unit test for BTreeFile.readPage() from many threads at once: every
+     * read returns the bytes of the page asked for
+     */
+    @Test public void parallelBTreeReads() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 50000, null, null, 0);
+        int numPages = f.numPages();
+        byte[][] expected = new byte[numPages + 1][];
+        BTreePageId[] ids = new BTreePageId[numPages + 1];
+        for (int i = 1; i <= numPages; i++) {
+            // the category only decides how the bytes are parsed; leaves parse any page
+            ids[i] = new BTreePageId(f.getId(), i, BTreePageId.LEAF);
+            expected[i] = f.readPage(ids[i]).getPageData();
+        }
+        runThreads(8, 1000, (thread, random) -> {
+            int pageNo = 1 + random.nextInt(numPages);
+            assertArrayEquals(expected[pageNo], f.readPage(ids[pageNo]).getPageData());
+        });
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelIOTest.class);
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    /** Read all tuples of f in one transaction. */
+    private static List<List<Integer>> scan(DbFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        List<List<Integer>> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) tuples.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return tuples;
+    }
+
+    /**
+     * Unit test for read-ahead on heap files: a scan of a file four times
+     * the size of the pool reads ahead and returns the same tuples
+     */
+    @Test public void heapScanReadsAhead() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 256 * 504, null, tuples);
+        Database.resetBufferPool(64);
+        Database.getBufferPool().setPrefetchDepth(8);
+        assertEquals(tuples, scan(f));
+        assertTrue(Database.getBufferPool().getPrefetchCount() > 0);
+    }
+
+    /**
+     * Unit test for read-ahead on B+ tree files: a scan follows the leaf
+     * chain ahead of the reader and returns the same tuples
+     */
+    @Test public void btreeScanReadsAhead() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 50000, null, null, 0);
+        Database.resetBufferPool(64);
+        Database.getBufferPool().setPrefetchDepth(0);
+        List<List<Integer>> expected = scan(f);
+        assertEquals(0, Database.getBufferPool().getPrefetchCount());
+
+        Database.resetBufferPool(64);
+        Database.getBufferPool().setPrefetchDepth(8);
+        assertEquals(expected, scan(f));
+        assertTrue(Database.getBufferPool().getPrefetchCount() > 0);
+    }
+
+    /**
+     * Unit test for read-ahead: pages read ahead of a scan are in the pool,
+     * but the scanning transaction holds no locks on them
+     */
+    @Test public void readAheadTakesNoLocks() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 32 * 504, null, null);
+        Database.resetBufferPool(64);
+        BufferPool bp = Database.getBufferPool();
+        bp.setPrefetchDepth(8);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        // move to page 2, so pages 3 to 10 are read ahead, and page 2 too
+        // unless the scan got there first
+        Tuple t = null;
+        while (t == null || t.getRecordId().getPageId().getPageNumber() < 2) t = it.next();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bp.getPrefetchCount() < 8 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+        Thread.sleep(100);
+        assertTrue(bp.getPrefetchCount() == 8 || bp.getPrefetchCount() == 9);
+
+        PageId ahead = new HeapPageId(f.getId(), 10);
+        assertFalse(bp.holdsLock(tid, ahead));
+        long hits = bp.getHitCount();
+        TransactionId other = new TransactionId();
+        bp.getPage(other, ahead, Permissions.READ_WRITE);
+        assertEquals(hits + 1, bp.getHitCount());
+        bp.transactionComplete(other);
+        it.close();
+        bp.transactionComplete(tid);
+    }
+
+    /** A heap file whose page reads take at least the given time, like a disk's. */
+    private static HeapFile withLatency(HeapFile f, long micros) {
+        HeapFile slow = new HeapFile(f.getFile(), f.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId pid) {
+                long until = System.nanoTime() + micros * 1000;
+                while (System.nanoTime() < until) {
+                    try {
+                        Thread.sleep(0, 100000);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+        return slow;
+    }
+
+    /**
+     * Unit test for read-ahead on a file whose page reads are slow: a scan
+     * returns the same tuples at any depth, including when the reader
+     * catches up with pages still being read
+     */
+    @Test public void slowReadsAnyDepth() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile slow = withLatency(SystemTestUtil.createRandomHeapFile(2, 40 * 504, null, tuples), 200);
+        for (int depth : new int[] {0, 1, 8, 32}) {
+            Database.resetBufferPool(16);
+            Database.getBufferPool().setPrefetchDepth(depth);
+            assertEquals(tuples, scan(slow));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,229 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Delete;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.AbortEvictionTest;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    /** Throw away everything in memory, open f again and recover from the log. */
+    private static HeapFile crash(HeapFile f) throws Exception {
+        return crash(f, 1);
+    }
+
+    /** Crash, and recover with the given number of threads. */
+    private static HeapFile crash(HeapFile f, int threads) throws Exception {
+        Database.getBufferPool().stopBackgroundWriter();
+        Database.reset();
+        HeapFile reopened = Utility.openHeapFile(2, f.getFile());
+        Database.getLogFile().setRecoveryThreads(threads);
+        Database.getLogFile().recover();
+        return reopened;
+    }
+
+    private static int count(HeapFile f) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        int count = 0;
+        scan.open();
+        for (; scan.hasNext(); scan.next()) count++;
+        scan.close();
+        t.commit();
+        return count;
+    }
+
+    /** Delete every tuple of f in a transaction that is left running. */
+    private static void deleteAll(HeapFile f, int rows) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        assertEquals(rows, SystemTestUtil.tupleToList(delete.next()).get(0).intValue());
+        delete.close();
+    }
+
+    /**
+     * Unit test for LogFile.recover(): pages a running transaction had
+     * stolen to disk are undone
+     */
+    @Test public void stolenPagesAreUndone() throws Exception {
+        int rows = 504 * 10;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        Database.resetBufferPool(4);
+        deleteAll(f, rows);
+
+        f = crash(f);
+        assertEquals(rows, count(f));
+    }
+
+    /**
+     * Unit test for LogFile.recover(): committed changes that only reached
+     * the log are redone, from before a fuzzy checkpoint on
+     */
+    @Test public void committedPagesAreRedone() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.getBufferPool().startBackgroundWriter(1, 0, TimeUnit.HOURS);
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+        t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+
+        f = crash(f);
+        assertEquals(12, count(f));
+    }
+
+    /**
+     * Unit test for LogFile.recover(): committed and aborted transactions and
+     * one that did not finish, on the same pages, in any order
+     */
+    @Test public void committedAbortedAndRunning() throws Exception {
+        int rows = 504 * 4;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        Database.resetBufferPool(4);
+        Database.getBufferPool().startBackgroundWriter(1, 0, TimeUnit.HOURS);
+
+        Transaction committed = new Transaction();
+        committed.start();
+        AbortEvictionTest.insertRow(f, committed);
+        committed.commit();
+
+        Transaction aborted = new Transaction();
+        aborted.start();
+        AbortEvictionTest.insertRow(f, aborted);
+        aborted.transactionComplete(true);
+
+        deleteAll(f, rows + 1);
+
+        f = crash(f);
+        assertEquals(rows + 1, count(f));
+        Transaction t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /**
+     * Unit test for LogFile.recover(): recovering again, as after a crash
+     * during recovery, changes nothing
+     */
+    @Test public void recoveryIsRepeatable() throws Exception {
+        int rows = 504 * 10;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        Database.resetBufferPool(4);
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+        deleteAll(f, rows + 1);
+
+        f = crash(f);
+        assertEquals(rows + 1, count(f));
+        f = crash(f);
+        assertEquals(rows + 1, count(f));
+    }
+
+    /**
+     * Unit test for LogFile.recover() with several threads: committed
+     * changes to many pages are redone, uncommitted ones undone
+     */
+    @Test public void parallelRedo() throws Exception {
+        int rows = 504 * 20;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        Database.getBufferPool().startBackgroundWriter(1, 0, TimeUnit.HOURS);
+        for (int i = 0; i < 20; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < 100; j++) AbortEvictionTest.insertRow(f, t);
+            t.commit();
+        }
+        Transaction open = new Transaction();
+        open.start();
+        for (int j = 0; j < 100; j++) AbortEvictionTest.insertRow(f, open);
+        Database.getBufferPool().flushAllPages();
+
+        f = crash(f, 4);
+        assertEquals(rows + 2000, count(f));
+    }
+
+    /**
+     * Unit test for LogFile.recover(): any number of recovery threads redoes
+     * a log of small changes to many pages, none of which reached the disk,
+     * to the same pages
+     */
+    @Test public void redoAnyThreads() throws Exception {
+        int numPages = 64;
+        int records = 5000;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * numPages, null, null);
+        byte[] data = Files.readAllBytes(f.getFile().toPath());
+        HeapPage[] pages = new HeapPage[numPages];
+        for (int i = 0; i < numPages; i++) pages[i] = (HeapPage) f.readPage(new HeapPageId(f.getId(), i));
+
+        // the log lives next to the files truncation creates, so it can be renamed
+        File logFile = new File("recovery-threads.log");
+        logFile.deleteOnExit();
+        LogFile log = new LogFile(logFile);
+        Random random = new Random(0);
+        for (int i = 0; i < records; i += 100) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int j = 0; j < 100; j++) {
+                HeapPage page = pages[random.nextInt(numPages)];
+                HeapPage before = page.getBeforeImage();
+                page.deleteTuple(page.iterator().next());
+                page.insertTuple(Utility.getHeapTuple(new int[] {i, j}));
+                page.setBeforeImage();
+                log.logWrite(tid, before, page);
+            }
+            log.logCommit(tid);
+        }
+        byte[] logData = Files.readAllBytes(logFile.toPath());
+
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            Files.write(logFile.toPath(), logData);
+            Files.write(f.getFile().toPath(), data);
+            log = new LogFile(logFile);
+            log.setRecoveryThreads(threads);
+            log.recover();
+            for (int i = 0; i < numPages; i++) {
+                assertArrayEquals(pages[i].getPageData(), f.readPage(new HeapPageId(f.getId(), i)).getPageData());
+            }
+        }
+        log.shutdown();
+        logFile.delete();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
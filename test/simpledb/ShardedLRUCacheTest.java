@@ -0,0 +1,104 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.util.ShardedLRUCache;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ShardedLRUCacheTest extends SimpleDbTestBase {
+
+    private static final int NUM_KEYS = 1024;
+    private static final int NUM_THREADS = 8;
+    private static final int READS_PER_THREAD = 20000;
+
+    /**
+     * Unit test for ShardedLRUCache.get() / put() / remove()
+     */
+    @Test public void getPutRemove() {
+        ShardedLRUCache<Integer, String> cache = new ShardedLRUCache<>(10, 4);
+        for (int i = 0; i < 8; i++) cache.put(i, "v" + i);
+        assertEquals(8, cache.getSize());
+        assertEquals("v3", cache.get(3));
+        cache.put(3, "w3");
+        assertEquals(8, cache.getSize());
+        assertEquals("w3", cache.get(3));
+        cache.remove(3);
+        cache.remove(3);
+        assertEquals(7, cache.getSize());
+        assertNull(cache.get(3));
+    }
+
+    /**
+     * Unit test for ShardedLRUCache.evictOldest()
+     */
+    @Test public void evictOldest() {
+        ShardedLRUCache<Integer, Integer> cache = new ShardedLRUCache<>(4, 4);
+        for (int i = 0; i < 3; i++) cache.put(i, i);
+        // below capacity, nothing to evict
+        assertNull(cache.evictOldest());
+
+        // one shard only, so eviction order must be exact LRU
+        ShardedLRUCache<Integer, Integer> single = new ShardedLRUCache<>(3, 1);
+        single.put(1, 1);
+        single.put(2, 2);
+        single.put(3, 3);
+        single.get(1);
+        assertEquals(Integer.valueOf(2), single.evictOldest());
+        assertEquals(2, single.getSize());
+        assertNull(single.evictOldest());
+
+        cache.put(3, 3);
+        Set<Integer> evicted = new HashSet<>();
+        evicted.add(cache.evictOldest());
+        assertEquals(3, cache.getSize());
+        Iterator<Integer> it = cache.getValueIterator();
+        int n = 0;
+        while (it.hasNext()) {
+            assertFalse(evicted.contains(it.next()));
+            n++;
+        }
+        assertEquals(3, n);
+    }
+
+    /**
+     * Unit test for ShardedLRUCache.get() from several threads at once: every
+     * lookup of a cached key hits
+     */
+    @Test public void concurrentReadHits() throws Exception {
+        ShardedLRUCache<Integer, Integer> cache = new ShardedLRUCache<>(NUM_KEYS);
+        for (int i = 0; i < NUM_KEYS; i++) cache.put(i, i);
+        AtomicLong hits = new AtomicLong();
+        Thread[] threads = new Thread[NUM_THREADS];
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                int key = seed;
+                for (int i = 0; i < READS_PER_THREAD; i++) {
+                    key = (key * 31 + 7) & (NUM_KEYS - 1);
+                    if (Integer.valueOf(key).equals(cache.get(key))) hits.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals((long) NUM_THREADS * READS_PER_THREAD, hits.get());
+        assertEquals(NUM_KEYS, cache.getSize());
+        for (int i = 0; i < NUM_KEYS; i++) assertEquals(Integer.valueOf(i), cache.get(i));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ShardedLRUCacheTest.class);
+    }
+}
@@ -0,0 +1,105 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.util.SlotBitmap;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SlotBitmapTest extends SimpleDbTestBase {
+
+    private static boolean used(byte[] data, int offset, int slot) {
+        return (data[offset + slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    /**
+     * Unit test for SlotBitmap: the same answers as testing slot by slot, for
+     * bitmaps of every density and length, with garbage after the last slot
+     */
+    @Test public void matchesSlotBySlot() {
+        Random random = new Random(42);
+        for (int numSlots : new int[] {1, 7, 8, 63, 64, 65, 127, 200, 504}) {
+            for (double density : new double[] {0, 0.02, 0.5, 0.98, 1}) {
+                int offset = 3;
+                byte[] data = new byte[offset + (numSlots + 7) / 8 + 8];
+                random.nextBytes(data);
+                for (int i = 0; i < numSlots; i++) {
+                    boolean set = random.nextDouble() < density;
+                    if (set) data[offset + i / 8] |= 1 << (i % 8);
+                    else data[offset + i / 8] &= ~(1 << (i % 8));
+                }
+
+                int count = 0;
+                for (int i = 0; i < numSlots; i++) if (used(data, offset, i)) count++;
+                assertEquals(count, SlotBitmap.countUsed(data, offset, numSlots));
+                for (int from = 0; from <= numSlots; from++) {
+                    int nextUsed = -1, nextEmpty = -1, previousUsed = -1;
+                    for (int i = from; i < numSlots && nextUsed < 0; i++) if (used(data, offset, i)) nextUsed = i;
+                    for (int i = from; i < numSlots && nextEmpty < 0; i++) if (!used(data, offset, i)) nextEmpty = i;
+                    for (int i = Math.min(from, numSlots - 1); i >= 0 && previousUsed < 0; i--)
+                        if (used(data, offset, i)) previousUsed = i;
+                    assertEquals(nextUsed, SlotBitmap.nextUsed(data, offset, numSlots, from));
+                    assertEquals(nextEmpty, SlotBitmap.nextEmpty(data, offset, numSlots, from));
+                    assertEquals(previousUsed, SlotBitmap.previousUsed(data, offset, numSlots, from));
+                }
+            }
+        }
+    }
+
+    /**
+     * Unit test for HeapPage on a sparse page with one used slot in 64:
+     * iteration, empty slot counts and inserts that fill the page back up
+     */
+    @Test public void sparsePage() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        HeapPage full = new HeapPage(new HeapPageId(-1, 0), HeapPage.createEmptyPageData());
+        while (full.getNumEmptySlots() > 0) full.insertTuple(Utility.getHeapTuple(1, 2));
+        int slots = 0;
+        for (Iterator<Tuple> it = full.iterator(); it.hasNext(); it.next()) slots++;
+        // keep every 64th tuple
+        int i = 0;
+        for (Iterator<Tuple> it = full.iterator(); it.hasNext(); i++) {
+            Tuple t = it.next();
+            if (i % 64 != 0) full.deleteTuple(t);
+        }
+
+        HeapPage page = new HeapPage(new HeapPageId(-1, 0), full.getPageData());
+        int tuples = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            assertEquals(0, it.next().getRecordId().getTupleNumber() % 64);
+            tuples++;
+        }
+        assertEquals((slots + 63) / 64, tuples);
+        assertEquals(slots - tuples, page.getNumEmptySlots());
+
+        int inserts = 0;
+        while (page.getNumEmptySlots() > 0) {
+            page.insertTuple(Utility.getHeapTuple(2, 2));
+            inserts++;
+        }
+        assertEquals(slots - tuples, inserts);
+        int n = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) n++;
+        assertEquals(slots, n);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlotBitmapTest.class);
+    }
+}
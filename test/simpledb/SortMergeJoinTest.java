@@ -0,0 +1,150 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private static final Predicate.Op[] OPS = {
+            Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+
+    /** The tuples of an operator as strings, sorted. */
+    private static List<String> run(OpIterator it) throws Exception {
+        List<String> tuples = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) tuples.add(it.next().toString());
+        it.close();
+        Collections.sort(tuples);
+        return tuples;
+    }
+
+    /**
+     * Unit test for SortMergeJoin: unsorted inputs with repeated keys give
+     * the same tuples as a nested loops join, for each predicate
+     */
+    @Test public void matchesNestedLoops() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 300, 50, null, null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 200, 50, null, null);
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : OPS) {
+            JoinPredicate p = new JoinPredicate(1, op, 2);
+            List<String> expected = run(new Join(p, new SeqScan(tid, left.getId(), "l"),
+                    new SeqScan(tid, right.getId(), "r")));
+            assertFalse(expected.isEmpty());
+            assertEquals(op.toString(), expected, run(new SortMergeJoin(p, new SeqScan(tid, left.getId(), "l"),
+                    new SeqScan(tid, right.getId(), "r"))));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for SortMergeJoin.isSorted(): scans of a B+ tree on its key,
+     * also under a Filter, and ascending OrderBys are read as they are
+     */
+    @Test public void sortedInputs() throws Exception {
+        BTreeFile left = BTreeUtility.createRandomBTreeFile(2, 500, 100, null, null, 0);
+        BTreeFile right = BTreeUtility.createRandomBTreeFile(2, 500, 100, null, null, 1);
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        TransactionId tid = new TransactionId();
+        assertTrue(SortMergeJoin.isSorted(new SeqScan(tid, left.getId(), "l"), 0));
+        assertFalse(SortMergeJoin.isSorted(new SeqScan(tid, left.getId(), "l"), 1));
+        assertTrue(SortMergeJoin.isSorted(new BTreeScan(tid, right.getId(), "r", null), 1));
+        assertTrue(SortMergeJoin.isSorted(new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(5)),
+                new SeqScan(tid, left.getId(), "l")), 0));
+        assertFalse(SortMergeJoin.isSorted(new SeqScan(tid, heap.getId(), "h"), 0));
+        assertTrue(SortMergeJoin.isSorted(new OrderBy(1, true, new SeqScan(tid, heap.getId(), "h")), 1));
+        assertFalse(SortMergeJoin.isSorted(new OrderBy(1, false, new SeqScan(tid, heap.getId(), "h")), 1));
+
+        for (Predicate.Op op : OPS) {
+            JoinPredicate p = new JoinPredicate(0, op, 1);
+            List<String> expected = run(new Join(p, new SeqScan(tid, left.getId(), "l"),
+                    new SeqScan(tid, right.getId(), "r")));
+            assertEquals(op.toString(), expected, run(new SortMergeJoin(p, new SeqScan(tid, left.getId(), "l"),
+                    new BTreeScan(tid, right.getId(), "r", null))));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for SortMergeJoin.rewind()
+     */
+    @Test public void rewind() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 200, 40, null, null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 200, 40, null, null);
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : OPS) {
+            OpIterator join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r"));
+            List<String> expected = run(join);
+            join.open();
+            for (int i = 0; i < 50 && join.hasNext(); i++) join.next();
+            join.rewind();
+            List<String> again = new ArrayList<>();
+            while (join.hasNext()) again.add(join.next().toString());
+            join.close();
+            Collections.sort(again);
+            assertEquals(op.toString(), expected, again);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for JoinOptimizer.instantiateJoin(): range joins are merged,
+     * and equality joins when both inputs are already in order
+     */
+    @Test public void instantiateJoin() throws Exception {
+        BTreeFile sorted = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode range = new LogicalJoinNode("a", "b", "a." + sorted.getTupleDesc().getFieldName(0),
+                "b." + heap.getTupleDesc().getFieldName(0), Predicate.Op.LESS_THAN);
+        assertTrue(JoinOptimizer.instantiateJoin(range, new SeqScan(tid, sorted.getId(), "a"),
+                new SeqScan(tid, heap.getId(), "b")) instanceof SortMergeJoin);
+
+        LogicalJoinNode equals = new LogicalJoinNode("a", "b", "a." + sorted.getTupleDesc().getFieldName(0),
+                "b." + sorted.getTupleDesc().getFieldName(0), Predicate.Op.EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(equals, new SeqScan(tid, sorted.getId(), "a"),
+                new SeqScan(tid, sorted.getId(), "b")) instanceof SortMergeJoin);
+        equals = new LogicalJoinNode("a", "b", "a." + sorted.getTupleDesc().getFieldName(0),
+                "b." + heap.getTupleDesc().getFieldName(0), Predicate.Op.EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(equals, new SeqScan(tid, sorted.getId(), "a"),
+                new SeqScan(tid, heap.getId(), "b")) instanceof HashEquiJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
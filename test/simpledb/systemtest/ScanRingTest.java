@@ -0,0 +1,92 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Reads a small hot table, scans a table several times larger than the buffer
+ * pool, and reads the hot table again. With buffer rings the scan must not
+ * push the hot pages out of the pool.
+ */
+public class ScanRingTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 64;
+    private static final int HOT_PAGES = 16;
+    private static final int SCAN_PAGES = 4 * BUFFER_PAGES;
+
+    private long hotMisses(HeapFile hot, HeapFile big, boolean rings)
+            throws IOException, DbException, TransactionAbortedException {
+        Database.resetBufferPool(BUFFER_PAGES);
+        BufferPool bp = Database.getBufferPool();
+        bp.setScanRingsEnabled(rings);
+        TransactionId tid = new TransactionId();
+        readAll(tid, hot);
+        readAll(tid, hot);
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(SCAN_PAGES * tuplesPerPage(), count);
+
+        long before = bp.getMissCount();
+        readAll(tid, hot);
+        long misses = bp.getMissCount() - before;
+        bp.transactionComplete(tid);
+        return misses;
+    }
+
+    private static void readAll(TransactionId tid, HeapFile f)
+            throws DbException, TransactionAbortedException {
+        for (int i = 0; i < f.numPages(); i++)
+            Database.getBufferPool().getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+    }
+
+    private static int tuplesPerPage() {
+        return (BufferPool.getPageSize() * 8) / (2 * 4 * 8 + 1);
+    }
+
+    /** Unit test for BufferPool.newScanRing() with a large SeqScan */
+    @Test public void testScanKeepsHotPages() throws IOException, DbException, TransactionAbortedException {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, HOT_PAGES * tuplesPerPage(), null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, SCAN_PAGES * tuplesPerPage(), null, null);
+        assertEquals(HOT_PAGES, hot.numPages());
+        assertEquals(SCAN_PAGES, big.numPages());
+
+        long withoutRings = hotMisses(hot, big, false);
+        long withRings = hotMisses(hot, big, true);
+        assertEquals(HOT_PAGES, withoutRings);
+        assertEquals(0, withRings);
+    }
+
+    /** Unit test for BufferPool.newScanRing() */
+    @Test public void testSmallTablesUseThePool() {
+        Database.resetBufferPool(BUFFER_PAGES);
+        BufferPool bp = Database.getBufferPool();
+        assertNull(bp.newScanRing(BUFFER_PAGES));
+        BufferRing ring = bp.newScanRing(BUFFER_PAGES + 1);
+        assertNotNull(ring);
+        assertTrue(ring.size() <= BufferPool.MAX_SCAN_RING_PAGES);
+        bp.setScanRingsEnabled(false);
+        assertNull(bp.newScanRing(BUFFER_PAGES + 1));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanRingTest.class);
+    }
+}